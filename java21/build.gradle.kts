@@ -25,6 +25,9 @@ repositories {
 dependencies {
     @Suppress("VulnerableLibrariesLocal", "RedundantSuppression")
     implementation("io.sigpipe:jbsdiff:1.0")
+    // jbsdiff pulls in 1.5, LZ4 and Zstandard support needs a newer one, and patches come from downloaded
+    // containers, so stay past the 1.26 fixes for CVE-2024-25710 and CVE-2024-26308
+    implementation("org.apache.commons:commons-compress:1.27.1")
     implementation("org.leavesmc:leaves-plugin-mixin-condition:1.0.0")
     implementation("io.github.llamalad7:mixinextras-common:0.5.0")
     implementation("net.fabricmc:access-widener:2.1.0")
@@ -45,3 +48,40 @@ tasks.shadowJar {
     exclude("META-INF/LICENSE.txt")
     exclude("META-INF/NOTICE.txt")
 }
+
+val benchmark: SourceSet by sourceSets.creating {
+    compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    runtimeClasspath += sourceSets.main.get().output + sourceSets.main.get().runtimeClasspath
+}
+
+tasks.register<JavaExec>("patchBenchmark") {
+    group = "benchmark"
+    description = "Compares the in-tree bspatch against io.sigpipe.jbsdiff.Patch"
+    classpath = benchmark.runtimeClasspath
+    mainClass.set("org.leavesmc.leavesclip.patch.PatchBenchmark")
+    args((findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList<String>())
+}
+
+tasks.register<JavaExec>("downloadBenchmark") {
+    group = "benchmark"
+    description = "Runs the resumable downloader against a local HTTP server stand-in"
+    classpath = benchmark.runtimeClasspath
+    mainClass.set("org.leavesmc.leavesclip.patch.DownloadBenchmark")
+    args((findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList<String>())
+}
+
+tasks.register<JavaExec>("transformBenchmark") {
+    group = "benchmark"
+    description = "Compares widening mixin targets in a separate ASM pass against widening them while they are written"
+    classpath = benchmark.runtimeClasspath
+    mainClass.set("org.leavesmc.leavesclip.mixin.TransformBenchmark")
+    args((findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList<String>())
+}
+
+tasks.register<JavaExec>("classLoadingStress") {
+    group = "benchmark"
+    description = "Loads classes through the mixin class loader from many threads, failing on duplicate definitions or deadlocks"
+    classpath = benchmark.runtimeClasspath
+    mainClass.set("org.leavesmc.leavesclip.mixin.ClassLoadingStress")
+    args((findProperty("benchmarkArgs") as String?)?.split(" ")?.filter { it.isNotBlank() } ?: emptyList<String>())
+}
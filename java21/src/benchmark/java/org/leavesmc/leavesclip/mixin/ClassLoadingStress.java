@@ -0,0 +1,382 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.ClassRemapper;
+import org.objectweb.asm.commons.SimpleRemapper;
+import org.objectweb.asm.tree.ClassNode;
+import org.spongepowered.asm.launch.MixinBootstrap;
+import org.spongepowered.asm.mixin.MixinEnvironment;
+import org.spongepowered.asm.mixin.Mixins;
+import org.spongepowered.asm.mixin.extensibility.IMixinConfigPlugin;
+import org.spongepowered.asm.mixin.extensibility.IMixinInfo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Loads classes through {@link MixinURLClassLoader} from many threads at once, with Mixin running for real: a generated
+ * jar holds a hierarchy of classes, a mixin adding a field to every third of them and a config plugin that loads
+ * other classes of the jar, a mixin target among them, while mixins are applied. All threads load all classes, each in its own order, and some
+ * start with the plugin while Mixin is about to load it. Like the launcher's own config, it is selected in the
+ * {@code PREINIT} phase Mixin stays in under the launcher.
+ * <p>
+ * Usage: {@code ./gradlew :java21:classLoadingStress -PbenchmarkArgs="[runs] [threads] [classes]"}. Mixin selects its
+ * configs once per JVM, so every run is a fresh JVM. A run fails if a class is defined more than once, the mixin is not
+ * applied exactly once to each of its targets, or the threads do not finish within a minute, in which case the
+ * deadlocked threads are printed.
+ */
+public final class ClassLoadingStress {
+    private static final String RUN = "--run";
+    private static final String PACKAGE = "leavesclip/stress/";
+    private static final String MIXIN = PACKAGE + "mixin/StressMixin";
+    private static final String PLUGIN = PACKAGE + "plugin/StressPlugin";
+    private static final String HELPER = PACKAGE + "Helper";
+    /**
+     * {@code className(0)}, as a constant the plugin can use from inside the jar.
+     */
+    private static final String ROOT = PACKAGE + "C0";
+    private static final String CONFIG = "leavesclip-stress.mixins.json";
+    private static final String FIELD = "leavesclip$stress";
+    private static final int TARGET_EVERY = 3;
+    private static final long TIMEOUT_SECONDS = 60;
+
+    private ClassLoadingStress() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals(RUN)) {
+            System.exit(runOnce(Path.of(args[1]), Integer.parseInt(args[2]), Integer.parseInt(args[3])));
+        }
+
+        final int runs = args.length >= 1 ? Integer.parseInt(args[0]) : 20;
+        final int threads = args.length >= 2 ? Integer.parseInt(args[1]) : 16;
+        final int classes = args.length >= 3 ? Integer.parseInt(args[2]) : 2000;
+        final Path jar = Files.createTempFile("leavesclip-stress", ".jar");
+        jar.toFile().deleteOnExit();
+        writeJar(jar, classes);
+
+        int failures = 0;
+        for (int i = 0; i < runs; i++) {
+            if (!runForked(jar, threads, classes)) {
+                failures++;
+            }
+        }
+        System.out.printf("%d of %d runs failed%n", failures, runs);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static boolean runForked(final Path jar, final int threads, final int classes) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ClassLoadingStress.class.getName());
+        command.addAll(List.of(RUN, jar.toString(), String.valueOf(threads), String.valueOf(classes)));
+
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        if (!process.waitFor(TIMEOUT_SECONDS * 2, TimeUnit.SECONDS)) {
+            System.out.println("Run did not exit, killing it");
+            process.destroyForcibly().waitFor();
+            return false;
+        }
+        return process.exitValue() == 0;
+    }
+
+    /**
+     * Sets up Mixin like the launcher does and loads every class of the jar from {@code threads} threads.
+     *
+     * @return the exit code of the run
+     */
+    private static int runOnce(final Path jar, final int threads, final int classes) throws Exception {
+        System.setProperty("mixin.bootstrapService", MixinServiceKnotBootstrap.class.getName());
+        System.setProperty("mixin.service", MixinServiceKnot.class.getName());
+        MixinServiceKnot.classLoader = ClassLoadingStress.class.getClassLoader();
+        MixinBootstrap.init();
+        MixinEnvironment.getDefaultEnvironment().setSide(MixinEnvironment.Side.SERVER);
+
+        final MixinURLClassLoader loader = new MixinURLClassLoader(
+            new URL[]{jar.toUri().toURL()}, ClassLoadingStress.class.getClassLoader(), null, null, null
+        );
+        MixinServiceKnot.classLoader = loader;
+        Mixins.addConfiguration(CONFIG);
+
+        final List<String> names = new ArrayList<>();
+        for (int i = 0; i < classes; i++) {
+            names.add(className(i).replace('/', '.'));
+        }
+        names.add(HELPER.replace('/', '.'));
+        names.add(PLUGIN.replace('/', '.'));
+
+        final Class<?>[][] loaded = new Class<?>[threads][];
+        final CountDownLatch start = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        final long startTime = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            final List<String> order = new ArrayList<>(names);
+            Collections.shuffle(order, new Random(t));
+            if (t % 2 == 0) {
+                // Race the first transformation, which makes Mixin load the plugin itself
+                order.remove(PLUGIN.replace('/', '.'));
+                order.add(0, PLUGIN.replace('/', '.'));
+            }
+            futures.add(executor.submit(() -> {
+                start.await();
+                final Class<?>[] classesOfThread = new Class<?>[names.size()];
+                for (final String name : order) {
+                    classesOfThread[names.indexOf(name)] = Class.forName(name, false, loader);
+                }
+                loaded[thread] = classesOfThread;
+                return null;
+            }));
+        }
+        start.countDown();
+        executor.shutdown();
+        if (!executor.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            printStuckThreads();
+            return 1;
+        }
+        final long elapsed = System.nanoTime() - startTime;
+
+        final List<String> errors = new ArrayList<>();
+        for (final Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (final Exception e) {
+                errors.add("Loading failed: " + e.getCause());
+            }
+        }
+        if (errors.isEmpty()) {
+            check(loader, names, loaded, classes, errors);
+        }
+        if (!errors.isEmpty()) {
+            errors.stream().limit(20).forEach(System.out::println);
+            return 1;
+        }
+        System.out.printf("ok: %d classes from %d threads in %.1f ms%n", names.size(), threads, elapsed / 1e6);
+        return 0;
+    }
+
+    private static void check(final ClassLoader loader, final List<String> names, final Class<?>[][] loaded, final int classes, final List<String> errors) throws Exception {
+        for (int i = 0; i < names.size(); i++) {
+            final Class<?> first = loaded[0][i];
+            if (first.getClassLoader() != loader) {
+                errors.add(names.get(i) + " was defined by " + first.getClassLoader());
+            }
+            for (final Class<?>[] classesOfThread : loaded) {
+                if (classesOfThread[i] != first) {
+                    errors.add(names.get(i) + " was defined more than once");
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        final Map<String, AtomicInteger> applied = (Map<String, AtomicInteger>) loader.loadClass(PLUGIN.replace('/', '.'))
+            .getField("APPLIED").get(null);
+        for (int i = 0; i < classes; i++) {
+            final String name = className(i).replace('/', '.');
+            final boolean target = i % TARGET_EVERY == 0;
+            final boolean hasField = Set.of(loaded[0][i].getDeclaredFields()).stream().anyMatch(field -> field.getName().equals(FIELD));
+            if (hasField != target) {
+                errors.add(name + (target ? " is missing the mixin" : " has the mixin without being a target"));
+            }
+            final AtomicInteger count = applied.get(name);
+            if (target && (count == null || count.get() != 1)) {
+                errors.add("The mixin was applied to " + name + " " + (count == null ? 0 : count.get()) + " times");
+            }
+        }
+    }
+
+    private static void printStuckThreads() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final long[] deadlocked = threads.findDeadlockedThreads();
+        System.out.println(deadlocked == null ? "Timed out without a deadlock, threads:" : "Deadlocked threads:");
+        final ThreadInfo[] infos = deadlocked == null ? threads.dumpAllThreads(true, true) : threads.getThreadInfo(deadlocked, true, true);
+        for (final ThreadInfo info : infos) {
+            if (info != null && (deadlocked != null || info.getThreadName().startsWith("pool-"))) {
+                System.out.print(info);
+            }
+        }
+    }
+
+    private static String className(final int index) {
+        return PACKAGE + "C" + index;
+    }
+
+    private static void writeJar(final Path jar, final int classes) throws IOException {
+        try (final OutputStream out = Files.newOutputStream(jar); final JarOutputStream jarOut = new JarOutputStream(out)) {
+            final List<String> targets = new ArrayList<>();
+            for (int i = 0; i < classes; i++) {
+                // A tree, so defining a class loads its superclasses under the lock of the class
+                putClass(jarOut, className(i), i == 0 ? "java/lang/Object" : className((i - 1) / 2));
+                if (i % TARGET_EVERY == 0) {
+                    targets.add(className(i).replace('/', '.'));
+                }
+            }
+            putClass(jarOut, HELPER, "java/lang/Object");
+            putEntry(jarOut, MIXIN + ".class", mixin(targets));
+            putEntry(jarOut, PLUGIN + ".class", plugin());
+            putEntry(jarOut, CONFIG, ("""
+                {
+                  "required": true,
+                  "minVersion": "0.8",
+                  "target": "@env(PREINIT)",
+                  "package": "%s",
+                  "plugin": "%s",
+                  "compatibilityLevel": "JAVA_17",
+                  "mixins": ["%s"]
+                }
+                """).formatted(
+                (PACKAGE + "mixin").replace('/', '.'), PLUGIN.replace('/', '.'), MIXIN.substring(MIXIN.lastIndexOf('/') + 1)
+            ).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void putClass(final JarOutputStream jarOut, final String name, final String superName) throws IOException {
+        final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, superName, null);
+        final MethodVisitor init = writer.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+        writer.visitEnd();
+        putEntry(jarOut, name + ".class", writer.toByteArray());
+    }
+
+    /**
+     * {@code @Mixin(targets = ...)} adding a private field.
+     */
+    private static byte[] mixin(final List<String> targets) {
+        final ClassWriter writer = new ClassWriter(0);
+        writer.visit(Opcodes.V17, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, MIXIN, null, "java/lang/Object", null);
+        final AnnotationVisitor annotation = writer.visitAnnotation("Lorg/spongepowered/asm/mixin/Mixin;", false);
+        final AnnotationVisitor array = annotation.visitArray("targets");
+        targets.forEach(target -> array.visit(null, target));
+        array.visitEnd();
+        annotation.visitEnd();
+        writer.visitField(Opcodes.ACC_PRIVATE, FIELD, "I", null, null).visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * {@link Plugin} renamed into the jar, so the loader under test defines it instead of its parent.
+     */
+    private static byte[] plugin() throws IOException {
+        final String name = Type.getInternalName(Plugin.class);
+        try (final InputStream in = ClassLoadingStress.class.getResourceAsStream("/" + name + ".class")) {
+            if (in == null) {
+                throw new IOException(name + " not found");
+            }
+            final ClassWriter writer = new ClassWriter(0);
+            final ClassVisitor topLevel = new ClassVisitor(Opcodes.ASM9, writer) {
+                @Override
+                public void visitNestHost(final String nestHost) {
+                }
+
+                @Override
+                public void visitOuterClass(final String owner, final String name, final String descriptor) {
+                }
+
+                @Override
+                public void visitInnerClass(final String name, final String outerName, final String innerName, final int access) {
+                }
+            };
+            new ClassReader(in).accept(new ClassRemapper(topLevel, new SimpleRemapper(name, PLUGIN)), 0);
+            return writer.toByteArray();
+        }
+    }
+
+    private static void putEntry(final JarOutputStream jarOut, final String name, final byte[] content) throws IOException {
+        jarOut.putNextEntry(new JarEntry(name));
+        jarOut.write(content);
+        jarOut.closeEntry();
+    }
+
+    /**
+     * The config plugin of the generated jar. It counts how often the mixin was applied to each target, and loads
+     * other classes through the loader under test while Mixin applies it, as plugins reading their settings do: one
+     * that is no target, and the root of the hierarchy, which is. Mixin refuses to transform a class while it applies
+     * mixins to another, so only a target that is the supertype of every other target can be loaded here; the thread
+     * transforming the root may be any other one, holding whatever locks the loader takes for it.
+     */
+    public static final class Plugin implements IMixinConfigPlugin {
+        public static final Map<String, AtomicInteger> APPLIED = new ConcurrentHashMap<>();
+
+        @Override
+        public void onLoad(final String mixinPackage) {
+        }
+
+        @Override
+        public String getRefMapperConfig() {
+            return null;
+        }
+
+        @Override
+        public boolean shouldApplyMixin(final String targetClassName, final String mixinClassName) {
+            return true;
+        }
+
+        @Override
+        public void acceptTargets(final Set<String> myTargets, final Set<String> otherTargets) {
+        }
+
+        @Override
+        public List<String> getMixins() {
+            return null;
+        }
+
+        @Override
+        public void preApply(final String targetClassName, final ClassNode targetClass, final String mixinClassName, final IMixinInfo mixinInfo) {
+            try {
+                Class.forName(HELPER.replace('/', '.'), false, Plugin.class.getClassLoader());
+                final String root = ROOT.replace('/', '.');
+                if (!targetClassName.equals(root)) {
+                    Class.forName(root, false, Plugin.class.getClassLoader());
+                }
+            } catch (final ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void postApply(final String targetClassName, final ClassNode targetClass, final String mixinClassName, final IMixinInfo mixinInfo) {
+            final AtomicInteger count = new AtomicInteger();
+            final AtomicInteger previous = APPLIED.putIfAbsent(targetClassName, count);
+            (previous == null ? count : previous).incrementAndGet();
+        }
+    }
+}
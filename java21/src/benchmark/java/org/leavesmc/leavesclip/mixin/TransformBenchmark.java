@@ -0,0 +1,177 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.FieldNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.MethodNode;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Compares the per-class cost of widening a mixin target after Mixin wrote it, which parses and writes the class a
+ * second time, against widening it while the transformed tree is written, as {@link MixinURLClassLoader} does.
+ * <p>
+ * Usage: {@code ./gradlew :java21:transformBenchmark -PbenchmarkArgs="[jar] [iterations]"}. Without a jar the classes
+ * of {@code java.util} are used. Every class is its own target: a stand-in for a mixin injects a counter at the head
+ * of each method and an access widener makes every class, method and field accessible.
+ */
+public final class TransformBenchmark {
+    private static final String COUNTER = "leavesclip$calls";
+
+    private TransformBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final List<byte[]> classes = args.length >= 1 ? readJar(Path.of(args[0])) : readJdk();
+        final int iterations = args.length >= 2 ? Integer.parseInt(args[1]) : 5;
+        AccessWidenerManager.readAccessWidener(widenEverything(classes));
+
+        System.out.printf("classes: %d, %d bytes%n", classes.size(), classes.stream().mapToLong(bytes -> bytes.length).sum());
+
+        // Warm up both paths once so the first measured run is not dominated by class loading and the JIT
+        long sink = run(classes, false) + run(classes, true);
+
+        final long[] separate = new long[iterations];
+        final long[] fused = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            sink += run(classes, false);
+            separate[i] = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sink += run(classes, true);
+            fused[i] = System.nanoTime() - start;
+        }
+
+        report("separate widener pass", separate, classes.size());
+        report("fused into the write", fused, classes.size());
+        System.out.printf("(%d bytes written)%n", sink);
+    }
+
+    private static long run(final List<byte[]> classes, final boolean fused) {
+        long written = 0;
+        for (final byte[] original : classes) {
+            final ClassReader reader = new ClassReader(original);
+            final ClassNode classNode = new ClassNode();
+            reader.accept(classNode, ClassReader.EXPAND_FRAMES);
+            applyMixin(classNode);
+
+            final ClassWriter writer = new BenchmarkClassWriter(reader);
+            final byte[] transformed;
+            if (fused) {
+                classNode.accept(AccessWidenerManager.createClassVisitor(writer));
+                transformed = writer.toByteArray();
+            } else {
+                classNode.accept(writer);
+                transformed = AccessWidenerManager.applyAccessWidener(writer.toByteArray());
+            }
+            written += transformed.length;
+        }
+        return written;
+    }
+
+    /**
+     * Stands in for a mixin: a static counter incremented at the head of every method, like a simple {@code @Inject}.
+     */
+    private static void applyMixin(final ClassNode classNode) {
+        if ((classNode.access & Opcodes.ACC_INTERFACE) != 0) {
+            return;
+        }
+        classNode.fields.add(new FieldNode(Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC, COUNTER, "I", null, null));
+        for (final MethodNode method : classNode.methods) {
+            if (method.instructions.size() == 0) {
+                continue;
+            }
+            final InsnList counter = new InsnList();
+            counter.add(new FieldInsnNode(Opcodes.GETSTATIC, classNode.name, COUNTER, "I"));
+            counter.add(new InsnNode(Opcodes.ICONST_1));
+            counter.add(new InsnNode(Opcodes.IADD));
+            counter.add(new FieldInsnNode(Opcodes.PUTSTATIC, classNode.name, COUNTER, "I"));
+            method.instructions.insert(counter);
+        }
+    }
+
+    private static byte[] widenEverything(final List<byte[]> classes) {
+        final StringBuilder config = new StringBuilder("accessWidener\tv2\tnamed\n");
+        for (final byte[] bytes : classes) {
+            final ClassNode classNode = new ClassNode();
+            new ClassReader(bytes).accept(classNode, ClassReader.SKIP_CODE);
+            config.append("accessible\tclass\t").append(classNode.name).append('\n');
+            for (final MethodNode method : classNode.methods) {
+                if (!method.name.startsWith("<")) {
+                    config.append("accessible\tmethod\t").append(classNode.name).append('\t')
+                        .append(method.name).append('\t').append(method.desc).append('\n');
+                }
+            }
+            for (final FieldNode field : classNode.fields) {
+                config.append("accessible\tfield\t").append(classNode.name).append('\t')
+                    .append(field.name).append('\t').append(field.desc).append('\n');
+            }
+        }
+        return config.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<byte[]> readJar(final Path jar) throws Exception {
+        try (final FileSystem fileSystem = FileSystems.newFileSystem(jar)) {
+            return readClasses(fileSystem.getPath("/"));
+        }
+    }
+
+    private static List<byte[]> readJdk() throws Exception {
+        final FileSystem fileSystem = FileSystems.getFileSystem(URI.create("jrt:/"));
+        return readClasses(fileSystem.getPath("/modules/java.base/java/util"));
+    }
+
+    private static List<byte[]> readClasses(final Path root) throws Exception {
+        final List<byte[]> classes = new ArrayList<>();
+        try (final Stream<Path> files = Files.walk(root)) {
+            for (final Path file : files.sorted(Comparator.comparing(Path::toString)).toList()) {
+                final String name = file.toString();
+                if (name.endsWith(".class") && !name.endsWith("module-info.class") && !name.contains("META-INF/")) {
+                    classes.add(Files.readAllBytes(file));
+                }
+            }
+        }
+        return classes;
+    }
+
+    private static void report(final String name, final long[] times, final int classes) {
+        final long min = Arrays.stream(times).min().orElse(0);
+        final double average = Arrays.stream(times).average().orElse(0);
+        System.out.printf("%-22s min %8.1f ms, avg %8.1f ms, %6.1f us per class%n",
+            name, min / 1e6, average / 1e6, min / 1e3 / classes);
+    }
+
+    /**
+     * Computes frames without loading the classes it writes, where Mixin would look them up in its own class info.
+     */
+    private static final class BenchmarkClassWriter extends ClassWriter {
+        private BenchmarkClassWriter(final ClassReader reader) {
+            super(reader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        }
+
+        @Override
+        protected String getCommonSuperClass(final String type1, final String type2) {
+            try {
+                return super.getCommonSuperClass(type1, type2);
+            } catch (final RuntimeException e) {
+                return "java/lang/Object";
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.leavesmc.leavesclip.patch;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Runs {@link Downloader} against a local HTTP server standing in for the upstream, which serves a random file with
+ * range support and a per-connection bandwidth cap.
+ * <p>
+ * Usage: {@code ./gradlew :java21:downloadBenchmark -PbenchmarkArgs="[size MiB] [KiB/s per connection]"}.
+ * It compares a single connection with several, then cuts a download off half-way and checks that the next attempt
+ * only fetches the missing half. Exits with status 1 if a download does not match its hash, the cut-off download
+ * succeeds or the resumed one fetches more than the chunks that were missing.
+ */
+public final class DownloadBenchmark {
+    private static final int CHUNK_SIZE = 1024 * 1024;
+
+    private DownloadBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int sizeMiB = args.length >= 1 ? Integer.parseInt(args[0]) : 32;
+        final int bandwidthKiB = args.length >= 2 ? Integer.parseInt(args[1]) : 8 * 1024;
+
+        final byte[] data = new byte[sizeMiB * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        final byte[] hash = Util.newSha256Digest().digest(data);
+
+        final AtomicLong served = new AtomicLong();
+        final AtomicLong failAfter = new AtomicLong(Long.MAX_VALUE);
+        final AtomicInteger active = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/server.jar", exchange -> serve(exchange, data, bandwidthKiB, served, failAfter, active));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+
+        final Path dir = Files.createTempDirectory("leavesclip-download");
+        final List<String> failures = new ArrayList<>();
+        try {
+            final URI uri = URI.create("http://127.0.0.1:" + server.getAddress().getPort() + "/server.jar");
+            final HttpClient client = HttpClient.newHttpClient();
+            System.out.printf("file: %d MiB, bandwidth per connection: %d KiB/s%n", sizeMiB, bandwidthKiB);
+
+            for (final int connections : new int[]{1, 4, 8}) {
+                final Path output = dir.resolve("server-" + connections + ".jar");
+                final long start = System.nanoTime();
+                final boolean valid = new Downloader(client, connections, CHUNK_SIZE).download(uri, output, hash);
+                System.out.printf("%d connection(s): %.2f s, valid: %b%n",
+                    connections, (System.nanoTime() - start) / 1e9, valid);
+                if (!valid) {
+                    failures.add("download over " + connections + " connection(s) does not match its hash");
+                }
+            }
+
+            final Path output = dir.resolve("server-resumed.jar");
+            served.set(0);
+            failAfter.set(data.length / 2);
+            try {
+                new Downloader(client, 4, CHUNK_SIZE).download(uri, output, hash);
+                failures.add("interrupted download unexpectedly succeeded");
+            } catch (final IOException e) {
+                System.out.printf("interrupted after %d MiB: %s%n", served.get() >> 20, e.getMessage());
+            }
+
+            // Responses of the cut-off attempt must not count towards the resumed one
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (active.get() > 0 && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+
+            // The state file holds a header line, then one line per completed chunk
+            final Path stateFile = output.resolveSibling(output.getFileName() + ".part.state");
+            final long completedChunks = Files.exists(stateFile) ? Math.max(0, Files.readAllLines(stateFile).size() - 1) : 0;
+            final long missing = data.length - Math.min(data.length, completedChunks * CHUNK_SIZE);
+            served.set(0);
+            failAfter.set(Long.MAX_VALUE);
+            final boolean valid = new Downloader(client, 4, CHUNK_SIZE).download(uri, output, hash);
+            System.out.printf("resumed with %d of %d missing MiB transferred, valid: %b%n", served.get() >> 20, missing >> 20, valid);
+            if (!valid) {
+                failures.add("resumed download does not match its hash");
+            }
+            if (completedChunks == 0) {
+                failures.add("interrupted download completed no chunk to resume from");
+            }
+            if (served.get() > missing) {
+                failures.add("resumed download transferred " + served.get() + " bytes, only " + missing + " were missing");
+            }
+        } finally {
+            server.stop(0);
+            try (final Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+            }
+        }
+        failures.forEach(failure -> System.out.println("FAILED: " + failure));
+        // The server's executor threads would keep the JVM alive
+        System.exit(failures.isEmpty() ? 0 : 1);
+    }
+
+    private static void serve(
+        final HttpExchange exchange,
+        final byte[] data,
+        final int bandwidthKiB,
+        final AtomicLong served,
+        final AtomicLong failAfter,
+        final AtomicInteger active
+    ) throws IOException {
+        active.incrementAndGet();
+        try (exchange) {
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", "\"benchmark\"");
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", Integer.toString(data.length));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            int start = 0;
+            int end = data.length - 1;
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")) {
+                final String[] bounds = range.substring("bytes=".length()).split("-");
+                start = Integer.parseInt(bounds[0]);
+                end = Math.min(end, Integer.parseInt(bounds[1]));
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+                exchange.sendResponseHeaders(206, end - start + 1);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+            }
+
+            final OutputStream out = exchange.getResponseBody();
+            final int slice = Math.max(1, bandwidthKiB * 1024 / 100);
+            for (int position = start; position <= end; position += slice) {
+                if (served.get() >= failAfter.get()) {
+                    // Drop the connection without finishing the body
+                    throw new IOException("Simulated connection loss");
+                }
+                final int length = Math.min(slice, end + 1 - position);
+                out.write(data, position, length);
+                served.addAndGet(length);
+                try {
+                    Thread.sleep(10);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        } finally {
+            active.decrementAndGet();
+        }
+    }
+}
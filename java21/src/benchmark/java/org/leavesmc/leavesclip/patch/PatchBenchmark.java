@@ -0,0 +1,119 @@
+package org.leavesmc.leavesclip.patch;
+
+import io.sigpipe.jbsdiff.Diff;
+import io.sigpipe.jbsdiff.Patch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Compares cold patch time of {@link BsPatch} against the {@code io.sigpipe.jbsdiff.Patch} path it replaced.
+ * <p>
+ * Usage: {@code ./gradlew :java21:patchBenchmark -PbenchmarkArgs="<original jar> <patch file> [iterations]"}.
+ * Without arguments a synthetic original and patch are generated. Every run is the first and only patch of a fresh
+ * JVM, as on a server's first start, and {@link BsPatch} reads the original from a file mapping like
+ * {@link PatchEntry} does.
+ */
+public final class PatchBenchmark {
+    private static final String RUN = "--run";
+
+    private PatchBenchmark() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length == 4 && args[0].equals(RUN)) {
+            runOnce(args[1], Path.of(args[2]), Path.of(args[3]));
+            return;
+        }
+
+        final Path original;
+        final Path patch;
+        if (args.length >= 2) {
+            original = Path.of(args[0]);
+            patch = Path.of(args[1]);
+        } else {
+            System.out.println("No input given, generating a synthetic patch");
+            final byte[] originalBytes = new byte[8 * 1024 * 1024];
+            final Random random = new Random(0);
+            random.nextBytes(originalBytes);
+            final byte[] modified = Arrays.copyOf(originalBytes, originalBytes.length + 256 * 1024);
+            for (int i = 0; i < 20_000; i++) {
+                modified[random.nextInt(modified.length)] = (byte) random.nextInt();
+            }
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Diff.diff(originalBytes, modified, out);
+            original = Files.createTempFile("leavesclip-original", ".bin");
+            patch = Files.createTempFile("leavesclip-patch", ".bin");
+            original.toFile().deleteOnExit();
+            patch.toFile().deleteOnExit();
+            Files.write(original, originalBytes);
+            Files.write(patch, out.toByteArray());
+        }
+        final int iterations = args.length >= 3 ? Integer.parseInt(args[2]) : 5;
+
+        System.out.printf("original: %d bytes, patch: %d bytes, setup threads: %d%n",
+            Files.size(original), Files.size(patch), SetupExecutor.parallelism);
+
+        final long[] jbsdiff = new long[iterations];
+        final long[] bspatch = new long[iterations];
+        for (int i = 0; i < iterations; i++) {
+            jbsdiff[i] = runForked("jbsdiff", original, patch);
+            bspatch[i] = runForked("bspatch", original, patch);
+        }
+
+        report("io.sigpipe.jbsdiff.Patch", jbsdiff);
+        report("BsPatch", bspatch);
+    }
+
+    /**
+     * Patches once in a new JVM and returns the time it reported, so neither path benefits from the other's warm-up.
+     */
+    private static long runForked(final String path, final Path original, final Path patch) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Dleavesclip.setup-threads=" + SetupExecutor.parallelism);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(PatchBenchmark.class.getName());
+        command.addAll(List.of(RUN, path, original.toString(), patch.toString()));
+
+        final Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        final String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8).trim();
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(path + " run failed: " + output);
+        }
+        return Long.parseLong(output);
+    }
+
+    private static void runOnce(final String path, final Path original, final Path patch) throws Exception {
+        final long start = System.nanoTime();
+        if (path.equals("jbsdiff")) {
+            Patch.patch(Files.readAllBytes(original), Files.readAllBytes(patch), OutputStream.nullOutputStream());
+        } else {
+            try (final FileChannel channel = FileChannel.open(original, READ)) {
+                final MappedByteBuffer buffer = channel.map(READ_ONLY, 0, channel.size());
+                BsPatch.patch(buffer, () -> Files.newInputStream(patch), OutputStream.nullOutputStream());
+            }
+        }
+        System.out.println(System.nanoTime() - start);
+    }
+
+    private static void report(final String name, final long[] times) {
+        final long min = Arrays.stream(times).min().orElse(0);
+        final double average = Arrays.stream(times).average().orElse(0);
+        System.out.printf("%-26s cold min %8.1f ms, avg %8.1f ms%n", name, min / 1e6, average / 1e6);
+    }
+}
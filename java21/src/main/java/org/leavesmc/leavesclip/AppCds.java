@@ -0,0 +1,220 @@
+package org.leavesmc.leavesclip;
+
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs the server in a child JVM backed by a dynamic class-data sharing archive, enabled with
+ * {@code -Dleavesclip.appcds=true}.
+ * <p>
+ * The child gets the prepared classpath as its {@code -cp}, so the server classes are loaded by the application class
+ * loader, which is what CDS archives. The archive lives in {@code <repo>/cache/cds/<fingerprint>.jsa}, where the
+ * fingerprint covers the JVM, the main class and the path, size and modification time of every classpath file.
+ * Files in the repo are only ever replaced when their hash changes, so any classpath change selects a new archive
+ * and the stale ones are deleted. The first start with a new fingerprint is the training run: the JVM writes the
+ * archive when the server stops ({@code -XX:+AutoCreateSharedArchive}) and every later start maps it.
+ * <p>
+ * The launcher JVM waits for the server for its whole lifetime, so it should be started with a small heap and the
+ * server's JVM options given in {@code -Dleavesclip.appcds.jvm-args}, separated by spaces. The child then gets those
+ * options and the {@code -D} properties of the launcher. Without that property the child gets all JVM options of the
+ * launcher, heap and GC options included, and a warning is logged for the ones that cost twice that way: a committed
+ * heap ({@code -Xms}, {@code -XX:+AlwaysPreTouch}) and files both JVMs write to ({@code -Xlog} and {@code -Xloggc}
+ * files, flight recordings, heap dumps and error files).
+ * <p>
+ * Either way the child does not get the sharing options, it gets the ones for its archive, nor the options that claim
+ * something the launcher JVM already holds: agents ({@code -javaagent}, {@code -agentlib}, {@code -agentpath}, which
+ * includes the JDWP debugger, and {@code -Xrunjdwp}) and the JMX remote options ({@code -Dcom.sun.management.*}). The
+ * child would fail to bind their ports or run the agents a second time, so they stay with the launcher and a warning
+ * is logged.
+ * <p>
+ * Mixin needs its own class loader, so this mode is ignored when mixin is enabled.
+ */
+final class AppCds {
+    private static final String ARCHIVE_SUFFIX = ".jsa";
+    private static final String JVM_ARGS_PROPERTY = "leavesclip.appcds.jvm-args";
+
+    private AppCds() {
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("leavesclip.appcds");
+    }
+
+    /**
+     * Runs the server in a child JVM and exits with its exit code, never returns.
+     */
+    static void relaunch(final URL[] classpath, final String mainClass, final String[] args, final Path repoDir) {
+        final List<Path> files = new ArrayList<>(classpath.length);
+        try {
+            for (final URL url : classpath) {
+                files.add(Path.of(url.toURI()).toAbsolutePath());
+            }
+        } catch (final URISyntaxException e) {
+            throw Util.fail("Invalid classpath entry for AppCDS", e);
+        }
+
+        final int exitCode;
+        try {
+            final Path archiveDir = repoDir.resolve("cache").resolve("cds");
+            Files.createDirectories(archiveDir);
+            final String fingerprint = fingerprint(files, mainClass);
+            final Path archive = archiveDir.resolve(fingerprint + ARCHIVE_SUFFIX);
+            deleteStaleArchives(archiveDir, archive);
+
+            if (Files.exists(archive)) {
+                Leavesclip.logger.info("Starting {} with AppCDS archive {}", mainClass, archive.getFileName());
+            } else {
+                Leavesclip.logger.info("Starting {}, the AppCDS archive is written when the server stops", mainClass);
+            }
+            exitCode = run(command(files, mainClass, args, archive));
+        } catch (final IOException e) {
+            throw Util.fail("Failed to start the server with AppCDS", e);
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Agents and JMX remote options are already active in this JVM: their ports are bound and their agents loaded.
+     */
+    private static boolean isHeldByLauncher(final String argument) {
+        return argument.startsWith("-javaagent:")
+            || argument.startsWith("-agentlib:")
+            || argument.startsWith("-agentpath:")
+            || argument.startsWith("-Xrunjdwp")
+            || argument.startsWith("-Dcom.sun.management.");
+    }
+
+    /**
+     * Options that cost as much again in a second JVM: the heap it commits, or files it writes to.
+     */
+    private static boolean isPaidTwice(final String argument) {
+        return argument.startsWith("-Xms")
+            || argument.equals("-XX:+AlwaysPreTouch")
+            || argument.startsWith("-Xlog:") && argument.contains("file=")
+            || argument.startsWith("-Xloggc:")
+            || argument.startsWith("-XX:StartFlightRecording")
+            || argument.startsWith("-XX:HeapDumpPath")
+            || argument.startsWith("-XX:ErrorFile");
+    }
+
+    private static List<String> command(final List<Path> files, final String mainClass, final String[] args, final Path archive) {
+        final String jvmArgs = System.getProperty(JVM_ARGS_PROPERTY);
+        final List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            // Drop our own sharing options, the child gets the ones for its archive
+            if (argument.startsWith("-XX:SharedArchiveFile")
+                || argument.startsWith("-XX:ArchiveClassesAtExit")
+                || argument.contains("AutoCreateSharedArchive")
+                || argument.startsWith("-Xshare")) {
+                continue;
+            }
+            if (isHeldByLauncher(argument)) {
+                Leavesclip.logger.warn("{} is not passed to the server JVM with AppCDS, it only applies to the launcher", argument);
+                continue;
+            }
+            if (jvmArgs != null) {
+                if (argument.startsWith("-D")) {
+                    command.add(argument);
+                } else if (isPaidTwice(argument)) {
+                    Leavesclip.logger.warn("{} only applies to the launcher JVM, which runs as long as the server, server options belong in -D{}", argument, JVM_ARGS_PROPERTY);
+                }
+                continue;
+            }
+            if (isPaidTwice(argument)) {
+                Leavesclip.logger.warn("{} applies to both the launcher and the server JVM with AppCDS, give the server's options in -D{} and start the launcher with a small heap", argument, JVM_ARGS_PROPERTY);
+            }
+            command.add(argument);
+        }
+        if (jvmArgs != null) {
+            for (final String argument : jvmArgs.trim().split("\\s+")) {
+                if (!argument.isEmpty()) {
+                    command.add(argument);
+                }
+            }
+        }
+        command.add("-XX:+AutoCreateSharedArchive");
+        command.add("-XX:SharedArchiveFile=" + archive);
+
+        final StringBuilder cp = new StringBuilder();
+        for (final Path file : files) {
+            if (!cp.isEmpty()) {
+                cp.append(File.pathSeparatorChar);
+            }
+            cp.append(file);
+        }
+        command.add("-cp");
+        command.add(cp.toString());
+        command.add(mainClass);
+        command.addAll(List.of(args));
+        return command;
+    }
+
+    private static int run(final List<String> command) throws IOException {
+        final Process process = new ProcessBuilder(command).inheritIO().start();
+        // Stopping the launcher (e.g. SIGTERM from a service manager) stops the server gracefully
+        final Thread shutdownHook = new Thread(() -> {
+            process.destroy();
+            try {
+                process.waitFor(60, TimeUnit.SECONDS);
+            } catch (final InterruptedException ignored) {
+                // Shutting down anyway
+            }
+        }, "Leavesclip AppCDS Shutdown");
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        while (true) {
+            try {
+                return process.waitFor();
+            } catch (final InterruptedException e) {
+                // Keep waiting, the server decides when it is done
+            }
+        }
+    }
+
+    private static String fingerprint(final List<Path> files, final String mainClass) throws IOException {
+        final MessageDigest digest = Util.newSha256Digest();
+        final StringBuilder text = new StringBuilder()
+            .append(System.getProperty("java.home")).append('\n')
+            .append(System.getProperty("java.vm.version")).append('\n')
+            .append(mainClass).append('\n');
+        for (final Path file : files) {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            text.append(file).append('\t')
+                .append(attributes.size()).append('\t')
+                .append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append('\n');
+        }
+        return HexFormat.of().formatHex(digest.digest(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void deleteStaleArchives(final Path archiveDir, final Path current) {
+        try (final Stream<Path> archives = Files.list(archiveDir)) {
+            archives
+                .filter(file -> file.getFileName().toString().endsWith(ARCHIVE_SUFFIX) && !file.equals(current))
+                .forEach(file -> {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (final IOException e) {
+                        Leavesclip.logger.debug("Failed to delete stale AppCDS archive " + file, e);
+                    }
+                });
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Failed to list AppCDS archives", e);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.leavesmc.leavesclip;
+
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HexFormat;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the repo in memory for ephemeral or read-only containers, enabled with {@code -Dleavesclip.diskless=true}.
+ * <p>
+ * The repo (downloaded original jar, patched server jar, extracted libraries and caches) is moved to a tmpfs directory,
+ * {@code -Dleavesclip.diskless-dir} or {@code /dev/shm/leavesclip} by default, in a subdirectory per working
+ * directory. Files there are plain files backed by memory, so the class loaders read them as usual. The original jar
+ * is only needed for patching and is deleted once setup is done, later starts only download it again when a patched
+ * file is missing or outdated. After setup the memory taken by the repo is logged, to size containers by.
+ */
+final class Diskless {
+    private static final Path SHARED_MEMORY = Path.of("/dev/shm");
+
+    private Diskless() {
+    }
+
+    static boolean isEnabled() {
+        return Boolean.getBoolean("leavesclip.diskless");
+    }
+
+    /**
+     * Points {@code bundlerRepoDir} at the in-memory repo, the server reads it too.
+     */
+    static void configure() {
+        final String configured = System.getProperty("leavesclip.diskless-dir");
+        final Path baseDir;
+        if (configured != null) {
+            baseDir = Path.of(configured);
+        } else if (Files.isDirectory(SHARED_MEMORY) && Files.isWritable(SHARED_MEMORY)) {
+            baseDir = SHARED_MEMORY.resolve("leavesclip");
+        } else {
+            baseDir = Path.of(System.getProperty("java.io.tmpdir"), "leavesclip");
+            Leavesclip.logger.warn("{} is not available, diskless mode uses {}, which may not be in memory", SHARED_MEMORY, baseDir);
+        }
+
+        // Several servers on one host each get their own repo
+        final String workingDir = Path.of("").toAbsolutePath().normalize().toString();
+        final String id = HexFormat.of().formatHex(Util.newSha256Digest().digest(workingDir.getBytes(StandardCharsets.UTF_8)), 0, 8);
+        final Path repoDir = baseDir.resolve(id).toAbsolutePath();
+        try {
+            Files.createDirectories(repoDir);
+        } catch (final IOException e) {
+            throw Util.fail("Failed to create the diskless repo " + repoDir, e);
+        }
+        if (System.getProperty("bundlerRepoDir") != null) {
+            Leavesclip.logger.warn("Diskless mode replaces bundlerRepoDir with {}", repoDir);
+        }
+        System.setProperty("bundlerRepoDir", repoDir.toString());
+    }
+
+    /**
+     * Deletes the original jar, the patched files made from it stay.
+     */
+    static void dropOriginalJar(final Path originalJar) {
+        try {
+            Files.deleteIfExists(originalJar);
+        } catch (final IOException e) {
+            Leavesclip.logger.warn("Failed to delete the original jar from the diskless repo", e);
+        }
+    }
+
+    /**
+     * Logs how much memory the repo takes, in total and per directory.
+     */
+    static void report(final Path repoDir) {
+        final long versions = size(repoDir.resolve("versions"));
+        final long libraries = size(repoDir.resolve("libraries"));
+        final long cache = size(repoDir.resolve("cache"));
+        final long total = size(repoDir);
+        String free = "unknown";
+        try {
+            final FileStore store = Files.getFileStore(repoDir);
+            free = mebibytes(store.getUsableSpace());
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Failed to read the free space of the diskless repo", e);
+        }
+        Leavesclip.logger.info(
+            "Diskless repo {} takes {} MiB (versions {} MiB, libraries {} MiB, cache {} MiB, other {} MiB), {} MiB free",
+            repoDir, mebibytes(total), mebibytes(versions), mebibytes(libraries), mebibytes(cache),
+            mebibytes(total - versions - libraries - cache), free
+        );
+    }
+
+    private static long size(final Path dir) {
+        if (!Files.isDirectory(dir)) {
+            return 0;
+        }
+        try (final Stream<Path> files = Files.walk(dir)) {
+            return files.mapToLong(file -> {
+                try {
+                    final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    return attributes.isRegularFile() ? attributes.size() : 0;
+                } catch (final IOException e) {
+                    return 0;
+                }
+            }).sum();
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Failed to measure " + dir, e);
+            return 0;
+        }
+    }
+
+    private static String mebibytes(final long bytes) {
+        return String.format("%.1f", bytes / (1024.0 * 1024.0));
+    }
+}
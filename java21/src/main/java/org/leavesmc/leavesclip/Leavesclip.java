@@ -1,13 +1,21 @@
 package org.leavesmc.leavesclip;
 
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.loader.IndexedURLClassLoader;
+import org.leavesmc.leavesclip.loader.MergedClasspath;
+import org.leavesmc.leavesclip.loader.nested.NestedJar;
 import org.leavesmc.leavesclip.logger.Logger;
 import org.leavesmc.leavesclip.logger.SimpleLogger;
 import org.leavesmc.leavesclip.mixin.*;
 import org.leavesmc.leavesclip.mixin.plugins.condition.BuildInfoInjector;
 import org.leavesmc.leavesclip.patch.DownloadContext;
 import org.leavesmc.leavesclip.patch.FileEntry;
+import org.leavesmc.leavesclip.patch.LaunchDescriptor;
+import org.leavesmc.leavesclip.patch.OriginalJar;
 import org.leavesmc.leavesclip.patch.PatchEntry;
+import org.leavesmc.leavesclip.patch.SetupExecutor;
 import org.leavesmc.leavesclip.patch.Util;
+import org.leavesmc.leavesclip.patch.VerificationCache;
 import org.leavesmc.leavesclip.update.AutoUpdate;
 import org.leavesmc.plugin.mixin.condition.condition.ConditionChecker;
 import org.spongepowered.asm.launch.MixinBootstrap;
@@ -26,13 +34,13 @@ import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Callable;
 
 public final class Leavesclip {
     public static final Logger logger = new SimpleLogger("Leavesclip");
+    private static String preparedMainClass;
 
     public static void main(final String[] args) {
         if (Path.of("").toAbsolutePath().toString().contains("!")) {
@@ -44,10 +52,30 @@ public final class Leavesclip {
             AutoUpdate.init();
         }
 
+        if (Diskless.isEnabled()) {
+            Diskless.configure();
+        }
+
+        if (NestedJar.isEnabled() && AppCds.isEnabled()) {
+            logger.warn("Nested libraries are not supported together with AppCDS, ignoring leavesclip.nested-libraries");
+        } else if (useNestedLibraries()) {
+            NestedJar.register();
+        }
+
+        if (MixinOverlay.isEnabled() && !Boolean.getBoolean("leavesclip.enable.mixin")) {
+            logger.warn("Applying mixins ahead of time needs leavesclip.enable.mixin, ignoring leavesclip.mixin-aot");
+        }
+
         URLClassLoader classLoader;
         final URL[] setupClasspathUrls = setupClasspath();
 
         if (Boolean.getBoolean("leavesclip.enable.mixin")) {
+            if (AppCds.isEnabled()) {
+                logger.warn("AppCDS is not supported together with mixin, ignoring leavesclip.appcds");
+            }
+            if (MergedClasspath.isEnabled()) {
+                logger.warn("The merged classpath is not supported together with mixin, ignoring leavesclip.merged-classpath");
+            }
             BuildInfoInjector.inject();
             overrideAsmVersion();
             PluginResolver.extractMixins();
@@ -65,15 +93,43 @@ public final class Leavesclip {
             MixinBootstrap.init();
             MixinEnvironment.getDefaultEnvironment().setSide(MixinEnvironment.Side.SERVER);
 
-            classLoader = new MixinURLClassLoader(classpathUrls, parentClassLoader);
+            final Path transformCacheDir = Boolean.getBoolean("leavesclip.disable.mixin-cache") ? null : findRepoDir().resolve("cache").resolve("mixin");
+            // The overlay is being rebuilt in patch-only runs, every class is transformed from scratch
+            final Path overlayJar = isPatchOnly() ? null : findMixinOverlayJar();
+            final MixinURLClassLoader mixinClassLoader = new MixinURLClassLoader(
+                classpathUrls, parentClassLoader, findClasspathIndexFile(), transformCacheDir, overlayJar
+            );
+            classLoader = mixinClassLoader;
             ConditionChecker.setClassLoader(classLoader);
             Mixins.addConfiguration("mixin-extras.init.mixins.json");
             MixinServiceKnot.classLoader = classLoader;
             MixinJarResolver.mixinConfigs.forEach(Mixins::addConfiguration);
             decorateMixinConfigWithPluginId();
             AccessWidenerManager.initAccessWidener(classLoader);
+
+            if (isPatchOnly()) {
+                try {
+                    mixinClassLoader.writeOverlay(findMixinOverlayJar());
+                } catch (final IOException e) {
+                    throw Util.fail("Failed to write the mixin overlay", e);
+                }
+                System.exit(0);
+            }
         } else {
-            classLoader = new URLClassLoader(setupClasspathUrls, Leavesclip.class.getClassLoader().getParent());
+            if (AppCds.isEnabled()) {
+                AppCds.relaunch(setupClasspathUrls, findMainClass(), args, findRepoDir());
+            }
+            MergedClasspath merged = null;
+            if (MergedClasspath.isEnabled()) {
+                if (useNestedLibraries()) {
+                    logger.warn("The merged classpath is not supported together with nested libraries, ignoring leavesclip.merged-classpath");
+                } else {
+                    merged = MergedClasspath.prepare(setupClasspathUrls, findRepoDir());
+                }
+            }
+            classLoader = new IndexedURLClassLoader(
+                setupClasspathUrls, Leavesclip.class.getClassLoader().getParent(), findClasspathIndexFile(), merged
+            );
         }
 
         final String mainClassName = findMainClass();
@@ -112,32 +168,64 @@ public final class Leavesclip {
     }
 
     private static URL[] setupClasspath() {
-        final var repoDir = Path.of(System.getProperty("bundlerRepoDir", ""));
+        final var repoDir = findRepoDir();
+        VerificationCache.load(repoDir);
+
+        // Warm starts reuse the result of the last setup if none of the files involved changed since
+        final List<Path> bundles = findBundleJars();
+        final LaunchDescriptor descriptor = LaunchDescriptor.read(repoDir, bundles, useNestedLibraries());
+        final URL[] urls;
+        if (descriptor != null) {
+            preparedMainClass = descriptor.mainClass();
+            urls = descriptor.classpath();
+        } else {
+            urls = prepareClasspath(repoDir);
+            new LaunchDescriptor(urls, readMainClass()).write(repoDir, bundles, useNestedLibraries());
+        }
+        if (Diskless.isEnabled()) {
+            Diskless.report(repoDir);
+        }
+
+        // Exit if user has set `paperclip.patchonly` or `leavesclip.patchonly` system property to `true`,
+        // unless mixins are to be applied ahead of time as well
+        if (isPatchOnly() && !buildsMixinOverlay()) {
+            System.exit(0);
+        }
+        return urls;
+    }
+
+    private static boolean isPatchOnly() {
+        return Boolean.getBoolean("paperclip.patchonly") || Boolean.getBoolean("leavesclip.patchonly");
+    }
+
+    private static boolean buildsMixinOverlay() {
+        return MixinOverlay.isEnabled() && Boolean.getBoolean("leavesclip.enable.mixin");
+    }
 
+    private static URL[] prepareClasspath(final Path repoDir) {
         final PatchEntry[] patches = findPatches();
         final DownloadContext downloadContext = findDownloadContext();
         if (patches.length > 0 && downloadContext == null) {
             throw new IllegalArgumentException("patches.list file found without a corresponding original-url file");
         }
 
-        final Path baseFile;
+        // Only downloaded once a setup task needs it, the other tasks keep running meanwhile
+        final OriginalJar originalJar;
         if (downloadContext != null) {
-            try {
-                downloadContext.download(repoDir);
-            } catch (final IOException e) {
-                throw Util.fail("Failed to download original jar", e);
-            }
-            baseFile = downloadContext.getOutputFile(repoDir);
+            originalJar = OriginalJar.of(downloadContext, repoDir);
         } else {
-            baseFile = null;
+            originalJar = OriginalJar.none();
         }
 
-        final Map<String, Map<String, URL>> classpathUrls = extractAndApplyPatches(baseFile, patches, repoDir);
-
-        // Exit if user has set `paperclip.patchonly` or `leavesclip.patchonly` system property to `true`
-        if (Boolean.getBoolean("paperclip.patchonly")
-            || Boolean.getBoolean("leavesclip.patchonly")) {
-            System.exit(0);
+        final Map<String, Map<String, URL>> classpathUrls = extractAndApplyPatches(originalJar, patches, repoDir, findBundleJar());
+        VerificationCache.save();
+        if (!useNestedLibraries()) {
+            // Everything is extracted, no need to keep the bundle jars mapped for the server's lifetime
+            NestedJar.releaseOuters();
+        }
+        if (Diskless.isEnabled() && downloadContext != null) {
+            // Everything made from it is in the repo now, no need to keep it in memory
+            Diskless.dropOriginalJar(downloadContext.getOutputFile(repoDir));
         }
 
         // Keep versions and libraries separate as the versions must come first
@@ -152,6 +240,47 @@ public final class Leavesclip {
         return urls;
     }
 
+    /**
+     * The jars the setup is read from: the launcher itself and, with auto update, the server core.
+     */
+    private static List<Path> findBundleJars() {
+        final List<Path> bundles = new ArrayList<>(2);
+        if (UrlUtil.LOADER_CODE_SOURCE != null) {
+            bundles.add(UrlUtil.LOADER_CODE_SOURCE.toAbsolutePath());
+        }
+        if (AutoUpdate.useAutoUpdateJar) {
+            bundles.add(Path.of(AutoUpdate.autoUpdateCorePath).toAbsolutePath());
+        }
+        return bundles;
+    }
+
+    /**
+     * The jar bundled files are read from: the server core with auto update, otherwise the launcher itself.
+     */
+    private static @Nullable Path findBundleJar() {
+        if (AutoUpdate.useAutoUpdateJar) {
+            return Path.of(AutoUpdate.autoUpdateCorePath).toAbsolutePath();
+        }
+        return UrlUtil.LOADER_CODE_SOURCE == null ? null : UrlUtil.LOADER_CODE_SOURCE.toAbsolutePath();
+    }
+
+    private static boolean useNestedLibraries() {
+        // A child JVM can only get plain files on its classpath
+        return NestedJar.isEnabled() && !AppCds.isEnabled();
+    }
+
+    private static Path findRepoDir() {
+        return Path.of(System.getProperty("bundlerRepoDir", ""));
+    }
+
+    private static Path findClasspathIndexFile() {
+        return findRepoDir().resolve("cache").resolve("classpath.index");
+    }
+
+    private static Path findMixinOverlayJar() {
+        return findRepoDir().resolve("cache").resolve("mixin-aot.jar");
+    }
+
     private static PatchEntry[] findPatches() {
         final InputStream patchListStream = AutoUpdate.getResourceAsStreamFromTargetJar("/META-INF/patches.list");
         if (patchListStream == null) {
@@ -202,7 +331,13 @@ public final class Leavesclip {
         if (mainClassName != null) {
             return mainClassName;
         }
+        if (preparedMainClass != null) {
+            return preparedMainClass;
+        }
+        return readMainClass();
+    }
 
+    private static String readMainClass() {
         try {
             return Util.readResourceText("/META-INF/main-class");
         } catch (final IOException e) {
@@ -210,102 +345,84 @@ public final class Leavesclip {
         }
     }
 
-    private static Map<String, Map<String, URL>> extractAndApplyPatches(final Path originalJar, final PatchEntry[] patches, final Path repoDir) {
-        if (originalJar == null && patches.length > 0) {
+    private static Map<String, Map<String, URL>> extractAndApplyPatches(
+        final OriginalJar originalJar,
+        final PatchEntry[] patches,
+        final Path repoDir,
+        final @Nullable Path bundleJar
+    ) {
+        if (!originalJar.isPresent() && patches.length > 0) {
             throw new IllegalArgumentException("Patch data found without patch target");
         }
 
-        // First extract any non-patch files
-        final Map<String, Map<String, URL>> urls = extractFiles(patches, originalJar, repoDir);
-
-        // Next apply any patches that we have
-        applyPatches(urls, patches, originalJar, repoDir);
-
-        return urls;
-    }
-
-    private static Map<String, Map<String, URL>> extractFiles(final PatchEntry[] patches, final Path originalJar, final Path repoDir) {
         final var urls = new HashMap<String, Map<String, URL>>();
-
-        try {
-            final FileSystem originalJarFs;
-            if (originalJar == null) {
-                originalJarFs = null;
-            } else {
-                originalJarFs = FileSystems.newFileSystem(originalJar);
+        final var versionsMap = new HashMap<String, URL>();
+        urls.putIfAbsent("versions", versionsMap);
+        final FileEntry[] versionEntries = findVersionEntries();
+
+        final FileEntry[] libraryEntries = findLibraryEntries();
+        final var librariesMap = new HashMap<String, URL>();
+        urls.putIfAbsent("libraries", librariesMap);
+
+        try (final SetupExecutor executor = new SetupExecutor(); originalJar) {
+            // Non-patch files are extracted first and patches applied last, all in one batch so that files from our
+            // own jar are extracted while the original jar is downloading. The maps are filled in task order afterwards
+            final List<Callable<URL>> tasks = new ArrayList<>();
+            addExtractTasks(tasks, patches, originalJar, repoDir, bundleJar, versionEntries, "versions");
+            addExtractTasks(tasks, patches, originalJar, repoDir, bundleJar, libraryEntries, "libraries");
+            for (final PatchEntry patch : patches) {
+                tasks.add(() -> patch.applyPatch(originalJar, repoDir));
             }
+            final List<URL> results = executor.invokeAll(tasks);
 
-            try {
-                final Path originalRootDir;
-                if (originalJarFs == null) {
-                    originalRootDir = null;
-                } else {
-                    originalRootDir = originalJarFs.getPath("/");
-                }
-
-                final var versionsMap = new HashMap<String, URL>();
-                urls.putIfAbsent("versions", versionsMap);
-                final FileEntry[] versionEntries = findVersionEntries();
-                extractEntries(versionsMap, patches, originalRootDir, repoDir, versionEntries, "versions");
-
-                final FileEntry[] libraryEntries = findLibraryEntries();
-                final var librariesMap = new HashMap<String, URL>();
-                urls.putIfAbsent("libraries", librariesMap);
-                extractEntries(librariesMap, patches, originalRootDir, repoDir, libraryEntries, "libraries");
-            } finally {
-                if (originalJarFs != null) {
-                    originalJarFs.close();
-                }
+            int index = 0;
+            index = collectEntries(versionsMap, versionEntries, results, index);
+            index = collectEntries(librariesMap, libraryEntries, results, index);
+            for (final PatchEntry patch : patches) {
+                // For the classpath, use the patched file instead of the original
+                urls.get(patch.location()).put(patch.originalPath(), results.get(index++));
             }
         } catch (final IOException e) {
-            throw Util.fail("Failed to extract jar files", e);
+            throw Util.fail("Failed to extract jar files and apply patches", e);
         }
 
         return urls;
     }
 
-    private static void extractEntries(
-        final Map<String, URL> urls,
+    private static void addExtractTasks(
+        final List<Callable<URL>> tasks,
         final PatchEntry[] patches,
-        final Path originalRootDir,
+        final OriginalJar originalJar,
         final Path repoDir,
+        final @Nullable Path bundleJar,
         final FileEntry[] entries,
         final String targetName
-    ) throws IOException {
+    ) {
         if (entries == null) {
             return;
         }
 
+        final boolean nested = useNestedLibraries();
         final String targetPath = "/META-INF/" + targetName;
         final Path targetDir = repoDir.resolve(targetName);
 
         for (final FileEntry entry : entries) {
-            entry.extractFile(urls, patches, targetName, originalRootDir, targetPath, targetDir);
+            tasks.add(() -> entry.extractFile(patches, targetName, originalJar, targetPath, targetDir, bundleJar, nested));
         }
     }
 
-    private static void applyPatches(
-        final Map<String, Map<String, URL>> urls,
-        final PatchEntry[] patches,
-        final Path originalJar,
-        final Path repoDir
-    ) {
-        if (patches.length == 0) {
-            return;
-        }
-        if (originalJar == null) {
-            throw new IllegalStateException("Patches provided without patch target");
+    private static int collectEntries(final Map<String, URL> urls, final FileEntry[] entries, final List<URL> results, int index) {
+        if (entries == null) {
+            return index;
         }
 
-        try (final FileSystem originalFs = FileSystems.newFileSystem(originalJar)) {
-            final Path originalRootDir = originalFs.getPath("/");
-
-            for (final PatchEntry patch : patches) {
-                patch.applyPatch(urls, originalRootDir, repoDir);
+        for (final FileEntry entry : entries) {
+            final URL url = results.get(index++);
+            if (url != null) {
+                urls.put(entry.path(), url);
             }
-        } catch (final IOException e) {
-            throw Util.fail("Failed to apply patches", e);
         }
+        return index;
     }
 
     private static void overrideAsmVersion() {
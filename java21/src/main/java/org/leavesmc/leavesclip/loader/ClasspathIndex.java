@@ -0,0 +1,176 @@
+package org.leavesmc.leavesclip.loader;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Maps each directory ("package") of a classpath to the jars that have entries in it, in classpath order.
+ * <p>
+ * The directory list of every jar is persisted, keyed by the jar's location, size and modification time, so a warm start
+ * does not have to walk the central directory of every jar again.
+ */
+final class ClasspathIndex {
+    private static final int MAGIC = 0x4C434349;
+    private static final int VERSION = 1;
+    private static final int[] NONE = new int[0];
+
+    private final Map<String, int[]> jarsByDirectory;
+
+    private ClasspathIndex(final Map<String, int[]> jarsByDirectory) {
+        this.jarsByDirectory = jarsByDirectory;
+    }
+
+    /**
+     * @return the positions of the jars that may contain {@code name}, in classpath order
+     */
+    int[] candidates(final String name) {
+        final int slash = name.lastIndexOf('/');
+        final int[] jars = this.jarsByDirectory.get(slash < 0 ? "" : name.substring(0, slash));
+        return jars == null ? NONE : jars;
+    }
+
+    /**
+     * Builds the index of the given, already opened, jars, reusing the persisted directory lists where possible.
+     */
+    static ClasspathIndex build(final List<? extends Source> jars, final @Nullable Path indexFile) {
+        final Map<String, Entry> persisted = indexFile == null ? Map.of() : read(indexFile);
+        final List<Entry> entries = new ArrayList<>(jars.size());
+        boolean changed = persisted.size() != jars.size();
+        for (final Source jar : jars) {
+            final Entry cached = persisted.get(jar.key());
+            final long[] stamp = stamp(jar.stampFile());
+            if (cached != null && stamp != null && cached.size == stamp[0] && cached.modifiedTime == stamp[1]) {
+                entries.add(cached);
+            } else {
+                entries.add(scan(jar, stamp));
+                changed = true;
+            }
+        }
+        if (changed && indexFile != null) {
+            write(indexFile, entries);
+        }
+
+        final Map<String, List<Integer>> positions = new HashMap<>();
+        for (int i = 0; i < entries.size(); i++) {
+            for (final String directory : entries.get(i).directories) {
+                positions.computeIfAbsent(directory, key -> new ArrayList<>(1)).add(i);
+            }
+        }
+        final Map<String, int[]> jarsByDirectory = new HashMap<>(positions.size() * 2);
+        positions.forEach((directory, list) -> jarsByDirectory.put(directory, list.stream().mapToInt(Integer::intValue).toArray()));
+        return new ClasspathIndex(jarsByDirectory);
+    }
+
+    private static Entry scan(final Source jar, final long @Nullable [] stamp) {
+        final Set<String> directories = new HashSet<>();
+        // Multi-release entries are listed under the names they are looked up with
+        jar.versionedNames().forEach(name -> {
+            final int slash = name.lastIndexOf('/');
+            directories.add(slash < 0 ? "" : name.substring(0, slash));
+        });
+        return new Entry(
+            jar.key(),
+            stamp == null ? -1 : stamp[0],
+            stamp == null ? -1 : stamp[1],
+            directories.toArray(new String[0])
+        );
+    }
+
+    private static long @Nullable [] stamp(final Path path) {
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new long[]{attributes.size(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)};
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    private static Map<String, Entry> read(final Path indexFile) {
+        if (Files.notExists(indexFile)) {
+            return Map.of();
+        }
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return Map.of();
+            }
+            final int count = in.readInt();
+            final Map<String, Entry> entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String path = in.readUTF();
+                final long size = in.readLong();
+                final long modifiedTime = in.readLong();
+                final String[] directories = new String[in.readInt()];
+                for (int j = 0; j < directories.length; j++) {
+                    directories[j] = in.readUTF();
+                }
+                entries.put(path, new Entry(path, size, modifiedTime, directories));
+            }
+            return entries;
+        } catch (final IOException | RuntimeException e) {
+            Leavesclip.logger.debug("Ignoring unreadable classpath index", e);
+            return Map.of();
+        }
+    }
+
+    private static void write(final Path indexFile, final List<Entry> entries) {
+        Path tempFile = null;
+        try {
+            Files.createDirectories(indexFile.getParent());
+            tempFile = Util.tempSibling(indexFile);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entries.size());
+                for (final Entry entry : entries) {
+                    out.writeUTF(entry.path);
+                    out.writeLong(entry.size);
+                    out.writeLong(entry.modifiedTime);
+                    out.writeInt(entry.directories.length);
+                    for (final String directory : entry.directories) {
+                        out.writeUTF(directory);
+                    }
+                }
+            }
+            Util.moveAtomically(tempFile, indexFile);
+        } catch (final IOException e) {
+            Leavesclip.logger.warn("Failed to write the classpath index", e);
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (final IOException ignored) {
+                    // Left over temp files are never read
+                }
+            }
+        }
+    }
+
+    /**
+     * A jar of the classpath.
+     */
+    interface Source {
+        /**
+         * The key the jar's directories are persisted under.
+         */
+        String key();
+
+        /**
+         * The file whose size and modification time tell whether the jar changed.
+         */
+        Path stampFile();
+
+        Stream<String> versionedNames();
+    }
+
+    private record Entry(String path, long size, long modifiedTime, String[] directories) {
+    }
+}
@@ -0,0 +1,441 @@
+package org.leavesmc.leavesclip.loader;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.loader.nested.NestedJar;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+import java.util.zip.ZipFile;
+
+/**
+ * {@link URLClassLoader} that answers class and resource lookups from a directory index of its jars
+ * ({@link ClasspathIndex}), instead of probing every jar in turn.
+ * <p>
+ * Every jar is opened once. A lookup goes straight to the jars that have entries in the requested directory, in
+ * classpath order, so the first URL still wins and versions keep precedence over libraries. When a URL is not a jar
+ * file or a {@link NestedJar} the index is not used and every lookup goes through {@link URLClassLoader}.
+ * <p>
+ * With a {@link MergedClasspath}, classes are defined from its memory-mapped jar instead, and the load order of this
+ * run is recorded for the next merge.
+ */
+public class IndexedURLClassLoader extends URLClassLoader {
+    static {
+        // Like URLClassLoader, lookups only read from jars that are already open and never change
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private final List<Jar> jars;
+    private final @Nullable ClasspathIndex index;
+    private final @Nullable MergedClasspath merged;
+
+    /**
+     * @param indexFile where the directory index is persisted between starts, or {@code null} to always scan the jars
+     */
+    public IndexedURLClassLoader(final URL[] urls, final ClassLoader parent, final @Nullable Path indexFile) {
+        this(urls, parent, indexFile, null);
+    }
+
+    /**
+     * @param indexFile where the directory index is persisted between starts, or {@code null} to always scan the jars
+     * @param merged    the merged classpath prepared for exactly these urls, classes are defined from it when present
+     */
+    public IndexedURLClassLoader(final URL[] urls, final ClassLoader parent, final @Nullable Path indexFile, final @Nullable MergedClasspath merged) {
+        super(urls, parent);
+        final List<Jar> jars = openJars(urls);
+        if (jars == null) {
+            this.jars = List.of();
+            this.index = null;
+            this.merged = null;
+            return;
+        }
+        this.jars = List.copyOf(jars);
+        this.index = ClasspathIndex.build(this.jars, indexFile);
+        this.merged = merged;
+    }
+
+    private static @Nullable List<Jar> openJars(final URL[] urls) {
+        final List<Jar> jars = new ArrayList<>(urls.length);
+        try {
+            for (final URL url : urls) {
+                final Jar jar = openJar(url);
+                if (jar == null) {
+                    closeQuietly(jars);
+                    return null;
+                }
+                jars.add(jar);
+            }
+        } catch (final IOException e) {
+            closeQuietly(jars);
+            throw new UncheckedIOException("Failed to open the classpath", e);
+        }
+        return jars;
+    }
+
+    private static @Nullable Jar openJar(final URL url) throws IOException {
+        if ("nested".equals(url.getProtocol())) {
+            return new NestedJarSource(url, NestedJar.open(url));
+        }
+        if (!"file".equals(url.getProtocol())) {
+            return null;
+        }
+        final Path path;
+        try {
+            path = Path.of(url.toURI()).toAbsolutePath();
+        } catch (final URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        return new FileJar(url, path, new JarFile(path.toFile(), true, ZipFile.OPEN_READ, JarFile.runtimeVersion()));
+    }
+
+    private @Nullable Found find(final String name) {
+        for (final int position : this.index.candidates(name)) {
+            final Found found = this.jars.get(position).find(name);
+            if (found != null) {
+                return found;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        if (this.index == null) {
+            return super.findClass(name);
+        }
+
+        final String path = name.replace('.', '/') + ".class";
+        if (this.merged != null) {
+            final MergedClasspath.Entry entry = this.merged.find(path);
+            if (entry != null) {
+                this.merged.recordLoad(path);
+                // Straight from the mapped merged jar, attributed to the jar the class came from
+                final Jar jar = this.jars.get(entry.origin());
+                try {
+                    this.definePackageFor(name, jar);
+                } catch (final IOException e) {
+                    throw new ClassNotFoundException(name, e);
+                }
+                return this.defineClass(name, this.merged.bytes(entry), jar.codeSource);
+            }
+        }
+
+        final Found found = this.find(path);
+        if (found == null) {
+            throw new ClassNotFoundException(name);
+        }
+        if (this.merged != null) {
+            this.merged.recordLoad(path);
+        }
+        try {
+            final ByteBuffer bytes = found.content();
+            this.definePackageFor(name, found.jar());
+            return this.defineClass(name, bytes, found.codeSource());
+        } catch (final IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+
+    private void definePackageFor(final String className, final Jar jar) throws IOException {
+        final int dot = className.lastIndexOf('.');
+        if (dot < 0) {
+            return;
+        }
+        final String packageName = className.substring(0, dot);
+        if (this.getDefinedPackage(packageName) != null) {
+            return;
+        }
+        try {
+            final Manifest manifest = jar.manifest();
+            if (manifest != null) {
+                this.definePackage(packageName, manifest, jar.url);
+            } else {
+                this.definePackage(packageName, null, null, null, null, null, null, null);
+            }
+        } catch (final IllegalArgumentException e) {
+            // Defined by another thread in the meantime
+            if (this.getDefinedPackage(packageName) == null) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public @Nullable URL findResource(final String name) {
+        if (this.index == null) {
+            return super.findResource(name);
+        }
+        final Found found = this.find(name);
+        return found == null ? null : found.url();
+    }
+
+    @Override
+    public Enumeration<URL> findResources(final String name) throws IOException {
+        if (this.index == null) {
+            return super.findResources(name);
+        }
+        final List<URL> urls = new ArrayList<>(1);
+        for (final int position : this.index.candidates(name)) {
+            final Found found = this.jars.get(position).find(name);
+            if (found != null) {
+                urls.add(found.url());
+            }
+        }
+        return Collections.enumeration(urls);
+    }
+
+    /**
+     * Whether {@code name} is looked up in this loader's jars before asking the parent, which {@link ClassLoader} only
+     * does after the parent found nothing.
+     */
+    protected boolean isLocalFirst(final String name) {
+        return false;
+    }
+
+    @Override
+    public @Nullable URL getResource(final String name) {
+        if (this.isLocalFirst(Objects.requireNonNull(name))) {
+            final URL url = this.findResource(name);
+            if (url != null) {
+                return url;
+            }
+        }
+        return super.getResource(name);
+    }
+
+    @Override
+    public @Nullable InputStream getResourceAsStream(final String name) {
+        final ClassLoader parent = this.getParent();
+        if (this.index == null || parent == null) {
+            return super.getResourceAsStream(name);
+        }
+        // Same order as getResource, but the name is resolved in the jars only once and without building a URL
+        final boolean localFirst = this.isLocalFirst(Objects.requireNonNull(name));
+        if (!localFirst) {
+            final InputStream in = parent.getResourceAsStream(name);
+            if (in != null) {
+                return in;
+            }
+        }
+        final Found found = this.find(name);
+        if (found != null) {
+            try {
+                return found.open();
+            } catch (final IOException e) {
+                return null;
+            }
+        }
+        return localFirst ? parent.getResourceAsStream(name) : null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            closeQuietly(this.jars);
+        }
+    }
+
+    private static void closeQuietly(final List<Jar> jars) {
+        for (final Jar jar : jars) {
+            try {
+                jar.close();
+            } catch (final IOException ignored) {
+                // Nothing left to do with it
+            }
+        }
+    }
+
+    private abstract static class Jar implements ClasspathIndex.Source {
+        protected final URL url;
+        protected final CodeSource codeSource;
+
+        private Jar(final URL url) {
+            this.url = url;
+            this.codeSource = new CodeSource(url, (CodeSigner[]) null);
+        }
+
+        @Override
+        public String key() {
+            return this.url.toString();
+        }
+
+        abstract @Nullable Found find(String name);
+
+        abstract @Nullable Manifest manifest() throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    /**
+     * An entry of one of the jars.
+     */
+    private interface Found {
+        Jar jar();
+
+        URL url();
+
+        InputStream open() throws IOException;
+
+        ByteBuffer content() throws IOException;
+
+        /**
+         * Only complete once {@link #content()} was read, as code signers are only known then.
+         */
+        CodeSource codeSource();
+    }
+
+    private static final class FileJar extends Jar {
+        private final Path path;
+        private final JarFile file;
+
+        private FileJar(final URL url, final Path path, final JarFile file) {
+            super(url);
+            this.path = path;
+            this.file = file;
+        }
+
+        @Override
+        public String key() {
+            return this.path.toString();
+        }
+
+        @Override
+        public Path stampFile() {
+            return this.path;
+        }
+
+        @Override
+        public Stream<String> versionedNames() {
+            return this.file.versionedStream().map(JarEntry::getName);
+        }
+
+        @Override
+        @Nullable Found find(final String name) {
+            final JarEntry entry = this.file.getJarEntry(name);
+            return entry == null ? null : new FileJarEntry(this, entry);
+        }
+
+        @Override
+        @Nullable Manifest manifest() throws IOException {
+            return this.file.getManifest();
+        }
+
+        @Override
+        void close() throws IOException {
+            this.file.close();
+        }
+    }
+
+    private record FileJarEntry(FileJar jar, JarEntry entry) implements Found {
+        @Override
+        public URL url() {
+            try {
+                // Multi-release entries are addressed by their versioned name, as URLClassLoader does
+                final String entryPath = new URI(null, null, this.entry.getRealName(), null).getRawPath();
+                return URI.create("jar:" + this.jar.url + "!/" + entryPath).toURL();
+            } catch (final URISyntaxException | MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return this.jar.file.getInputStream(this.entry);
+        }
+
+        @Override
+        public ByteBuffer content() throws IOException {
+            try (final InputStream in = this.open()) {
+                return ByteBuffer.wrap(in.readAllBytes());
+            }
+        }
+
+        @Override
+        public CodeSource codeSource() {
+            final CodeSigner[] signers = this.entry.getCodeSigners();
+            return signers == null ? this.jar.codeSource : new CodeSource(this.jar.url, signers);
+        }
+    }
+
+    private static final class NestedJarSource extends Jar {
+        private final NestedJar jar;
+
+        private NestedJarSource(final URL url, final NestedJar jar) {
+            super(url);
+            this.jar = jar;
+        }
+
+        @Override
+        public Path stampFile() {
+            return this.jar.outer();
+        }
+
+        @Override
+        public Stream<String> versionedNames() {
+            return this.jar.versionedNames();
+        }
+
+        @Override
+        @Nullable Found find(final String name) {
+            final NestedJar.Entry entry = this.jar.entry(name);
+            return entry == null ? null : new NestedJarEntry(this, entry);
+        }
+
+        @Override
+        @Nullable Manifest manifest() {
+            return this.jar.manifest();
+        }
+
+        @Override
+        void close() {
+            // The mapping is shared with the nested: URL handler and released by the garbage collector
+        }
+    }
+
+    private record NestedJarEntry(NestedJarSource jar, NestedJar.Entry entry) implements Found {
+        @Override
+        public URL url() {
+            return this.entry.url();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return this.entry.open();
+        }
+
+        @Override
+        public ByteBuffer content() throws IOException {
+            // Stored classes are defined straight from the mapping
+            return this.entry.content();
+        }
+
+        @Override
+        public CodeSource codeSource() {
+            return this.jar.codeSource;
+        }
+    }
+}
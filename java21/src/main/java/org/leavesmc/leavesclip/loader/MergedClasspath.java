@@ -0,0 +1,333 @@
+package org.leavesmc.leavesclip.loader;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * All classes of the versions and libraries jars merged into one uncompressed jar, enabled with
+ * {@code -Dleavesclip.merged-classpath=true}.
+ * <p>
+ * The merged jar lives in {@code <repo>/cache/merged/<fingerprint>.jar} and is memory-mapped, so
+ * {@link IndexedURLClassLoader} defines classes straight from the mapping, without inflating anything. The fingerprint
+ * covers the path, size and modification time of every input jar; repo files are only replaced when their hash changes,
+ * so the merged jar is rebuilt exactly when an input changes.
+ * <p>
+ * Entries are laid out in the order classes were loaded by the previous run ({@code class-load.order}), so startup
+ * reads the file front to back. The first start only records that order, the merged jar is built by the next one.
+ * <p>
+ * Only classes are merged, resources are still served from the original jars. A class keeps the code source and
+ * package manifest of the jar it came from, and classes of signed jars are never merged. The first jar containing a
+ * class wins, like on the regular classpath.
+ */
+public final class MergedClasspath {
+    private static final String ORDER_FILE = "class-load.order";
+    private static final int MAGIC = 0x4C434D43;
+    private static final int VERSION = 1;
+
+    private final Path orderFile;
+    private final Set<String> loadOrder = ConcurrentHashMap.newKeySet();
+    private final List<String> loadOrderList = Collections.synchronizedList(new ArrayList<>());
+    private final @Nullable MappedByteBuffer mapping;
+    private final Map<String, Entry> entries;
+
+    private MergedClasspath(final Path orderFile, final @Nullable MappedByteBuffer mapping, final Map<String, Entry> entries) {
+        this.orderFile = orderFile;
+        this.mapping = mapping;
+        this.entries = entries;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("leavesclip.merged-classpath");
+    }
+
+    /**
+     * Opens the merged jar for the given classpath, building it first if the inputs changed and a load order is known.
+     * The load order of this run is saved when the JVM exits.
+     */
+    public static MergedClasspath prepare(final URL[] classpath, final Path repoDir) {
+        final Path directory = repoDir.resolve("cache").resolve("merged");
+        final Path orderFile = directory.resolve(ORDER_FILE);
+        MergedClasspath merged;
+        try {
+            final List<Path> jars = new ArrayList<>(classpath.length);
+            for (final URL url : classpath) {
+                jars.add(Path.of(url.toURI()).toAbsolutePath());
+            }
+
+            Files.createDirectories(directory);
+            final String fingerprint = fingerprint(jars);
+            final Path jarFile = directory.resolve(fingerprint + ".jar");
+            final Path indexFile = directory.resolve(fingerprint + ".idx");
+            deleteStale(directory, jarFile, indexFile);
+
+            if (Files.notExists(indexFile) && Files.exists(orderFile)) {
+                Leavesclip.logger.info("Merging the classpath into {}", jarFile.getFileName());
+                build(jars, readOrder(orderFile), jarFile, indexFile);
+            }
+            merged = Files.exists(indexFile) ? open(orderFile, jarFile, indexFile) : new MergedClasspath(orderFile, null, Map.of());
+        } catch (final IOException | URISyntaxException | RuntimeException e) {
+            Leavesclip.logger.warn("Failed to prepare the merged classpath, loading classes from the jars", e);
+            merged = new MergedClasspath(orderFile, null, Map.of());
+        }
+
+        final MergedClasspath recorder = merged;
+        Runtime.getRuntime().addShutdownHook(new Thread(recorder::saveOrder, "Leavesclip Load Order Writer"));
+        return merged;
+    }
+
+    /**
+     * @param name a class file name, e.g. {@code java/lang/Object.class}
+     */
+    @Nullable Entry find(final String name) {
+        return this.mapping == null ? null : this.entries.get(name);
+    }
+
+    /**
+     * The class bytes, a view of the mapping that is only valid while the class loader is open.
+     */
+    ByteBuffer bytes(final Entry entry) {
+        return this.mapping.slice(entry.offset(), entry.length());
+    }
+
+    void recordLoad(final String name) {
+        if (this.loadOrder.add(name)) {
+            this.loadOrderList.add(name);
+        }
+    }
+
+    private void saveOrder() {
+        final List<String> order;
+        synchronized (this.loadOrderList) {
+            order = List.copyOf(this.loadOrderList);
+        }
+        if (order.isEmpty()) {
+            return;
+        }
+        Path tempFile = null;
+        try {
+            tempFile = Util.tempSibling(this.orderFile);
+            Files.write(tempFile, order);
+            Util.moveAtomically(tempFile, this.orderFile);
+        } catch (final IOException e) {
+            Leavesclip.logger.warn("Failed to write the class load order", e);
+        } finally {
+            deleteQuietly(tempFile);
+        }
+    }
+
+    private static String fingerprint(final List<Path> jars) throws IOException {
+        final MessageDigest digest = Util.newSha256Digest();
+        final StringBuilder text = new StringBuilder().append(Runtime.version().feature()).append('\n');
+        for (final Path jar : jars) {
+            final BasicFileAttributes attributes = Files.readAttributes(jar, BasicFileAttributes.class);
+            text.append(jar).append('\t')
+                .append(attributes.size()).append('\t')
+                .append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append('\n');
+        }
+        return HexFormat.of().formatHex(digest.digest(text.toString().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static List<String> readOrder(final Path orderFile) throws IOException {
+        return Files.readAllLines(orderFile);
+    }
+
+    private static void build(final List<Path> jars, final List<String> order, final Path jarFile, final Path indexFile) throws IOException {
+        final List<JarFile> opened = new ArrayList<>(jars.size());
+        try {
+            // Pick the first jar for every class name, as the classpath would
+            final Map<String, Source> sources = new LinkedHashMap<>();
+            final Set<String> taken = new HashSet<>();
+            for (int i = 0; i < jars.size(); i++) {
+                final JarFile jar = new JarFile(jars.get(i).toFile(), false, ZipFile.OPEN_READ, JarFile.runtimeVersion());
+                opened.add(jar);
+                final boolean signed = jar.stream().anyMatch(entry -> isSignatureFile(entry.getName()));
+                final int origin = i;
+                jar.versionedStream()
+                    .filter(entry -> entry.getName().endsWith(".class") && !entry.getName().endsWith("module-info.class"))
+                    .filter(entry -> taken.add(entry.getName()))
+                    // Classes of signed jars stay in their jar, but still shadow later jars
+                    .filter(entry -> !signed)
+                    .forEach(entry -> sources.put(entry.getName(), new Source(origin, jar, entry)));
+            }
+
+            // Classes in the order the last run loaded them, then everything else in classpath order
+            final List<String> layout = new ArrayList<>(sources.size());
+            final Set<String> placed = new HashSet<>();
+            for (final String name : order) {
+                if (sources.containsKey(name) && placed.add(name)) {
+                    layout.add(name);
+                }
+            }
+            for (final String name : sources.keySet()) {
+                if (placed.add(name)) {
+                    layout.add(name);
+                }
+            }
+
+            final Path tempJar = Util.tempSibling(jarFile);
+            final Path tempIndex = Util.tempSibling(indexFile);
+            try {
+                final Map<String, Entry> entries = new LinkedHashMap<>(layout.size() * 2);
+                try (
+                    final CountingOutputStream counter = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(tempJar)));
+                    final ZipOutputStream out = new ZipOutputStream(counter)
+                ) {
+                    out.setMethod(ZipOutputStream.STORED);
+                    final CRC32 crc = new CRC32();
+                    for (final String name : layout) {
+                        final Source source = sources.get(name);
+                        final byte[] bytes;
+                        try (final InputStream in = source.jar.getInputStream(source.entry)) {
+                            bytes = in.readAllBytes();
+                        }
+                        crc.reset();
+                        crc.update(bytes);
+                        final ZipEntry entry = new ZipEntry(name);
+                        entry.setMethod(ZipEntry.STORED);
+                        entry.setSize(bytes.length);
+                        entry.setCompressedSize(bytes.length);
+                        entry.setCrc(crc.getValue());
+                        out.putNextEntry(entry);
+                        // The local header is written by putNextEntry, the data starts here
+                        out.flush();
+                        if (counter.count + bytes.length > Integer.MAX_VALUE) {
+                            throw new IOException("Merged classpath is too large to be mapped");
+                        }
+                        entries.put(name, new Entry(source.origin, (int) counter.count, bytes.length));
+                        out.write(bytes);
+                        out.closeEntry();
+                    }
+                }
+
+                try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempIndex)))) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(entries.size());
+                    for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeInt(entry.getValue().origin());
+                        out.writeInt(entry.getValue().offset());
+                        out.writeInt(entry.getValue().length());
+                    }
+                }
+                // The index is moved last, its presence means the jar is complete
+                Util.moveAtomically(tempJar, jarFile);
+                Util.moveAtomically(tempIndex, indexFile);
+            } finally {
+                deleteQuietly(tempJar);
+                deleteQuietly(tempIndex);
+            }
+        } finally {
+            for (final JarFile jar : opened) {
+                jar.close();
+            }
+        }
+    }
+
+    private static boolean isSignatureFile(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', "META-INF/".length()) >= 0) {
+            return false;
+        }
+        return name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC");
+    }
+
+    private static MergedClasspath open(final Path orderFile, final Path jarFile, final Path indexFile) throws IOException {
+        final Map<String, Entry> entries;
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unsupported merged classpath index " + indexFile);
+            }
+            final int count = in.readInt();
+            entries = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                entries.put(in.readUTF(), new Entry(in.readInt(), in.readInt(), in.readInt()));
+            }
+        }
+
+        try (final FileChannel channel = FileChannel.open(jarFile)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Merged classpath is too large to be mapped: " + jarFile);
+            }
+            return new MergedClasspath(orderFile, channel.map(READ_ONLY, 0, channel.size()), entries);
+        }
+    }
+
+    private static void deleteStale(final Path directory, final Path jarFile, final Path indexFile) {
+        try (final Stream<Path> files = Files.list(directory)) {
+            files
+                .filter(file -> {
+                    final String name = file.getFileName().toString();
+                    return (name.endsWith(".jar") || name.endsWith(".idx")) && !file.equals(jarFile) && !file.equals(indexFile);
+                })
+                .forEach(MergedClasspath::deleteQuietly);
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Failed to list merged classpath files", e);
+        }
+    }
+
+    private static void deleteQuietly(final @Nullable Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            // Windows refuses to delete a file that is still mapped, it is deleted by a later start
+            Leavesclip.logger.debug("Failed to delete " + file, e);
+        }
+    }
+
+    /**
+     * A merged class: the position of the jar it came from, and where its bytes are in the merged jar.
+     */
+    record Entry(int origin, int offset, int length) {
+    }
+
+    private record Source(int origin, JarFile jar, JarEntry entry) {
+    }
+
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private long count = 0;
+
+        private CountingOutputStream(final OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(final int b) throws IOException {
+            this.out.write(b);
+            this.count++;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            this.out.write(b, off, len);
+            this.count += len;
+        }
+    }
+}
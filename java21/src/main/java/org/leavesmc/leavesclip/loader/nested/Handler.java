@@ -0,0 +1,60 @@
+package org.leavesmc.leavesclip.loader.nested;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+/**
+ * Handler for {@code nested:} URLs, see {@link NestedJar}. Found through {@code java.protocol.handler.pkgs}, which is
+ * why it has to be called {@code Handler}.
+ */
+public final class Handler extends URLStreamHandler {
+    @Override
+    protected URLConnection openConnection(final URL url) {
+        return new Connection(url);
+    }
+
+    private static final class Connection extends URLConnection {
+        private NestedJar.Entry entry;
+        private NestedJar jar;
+
+        private Connection(final URL url) {
+            super(url);
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if (this.connected) {
+                return;
+            }
+            final NestedJar.Location location = NestedJar.Location.parse(this.url);
+            this.jar = NestedJar.open(location.outer(), location.entry());
+            if (location.resource() != null) {
+                this.entry = this.jar.rawEntry(location.resource());
+                if (this.entry == null) {
+                    throw new FileNotFoundException(this.url.toString());
+                }
+            }
+            this.connected = true;
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            this.connect();
+            return this.entry == null ? NestedJar.toStream(this.jar.content()) : this.entry.open();
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            try {
+                this.connect();
+            } catch (final IOException e) {
+                return -1;
+            }
+            return this.entry == null ? this.jar.content().remaining() : this.entry.size();
+        }
+    }
+}
@@ -0,0 +1,397 @@
+package org.leavesmc.leavesclip.loader.nested;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+
+/**
+ * A jar stored uncompressed inside another jar, read in place from a memory mapping of the outer jar. Enabled with
+ * {@code -Dleavesclip.nested-libraries=true}, which serves the bundled libraries this way instead of extracting them.
+ * <p>
+ * A nested jar is addressed as {@code nested:<outer jar>!/<entry>} and a resource in it as
+ * {@code nested:<outer jar>!/<entry>!/<resource>}, the {@code nested} protocol is implemented by {@link Handler}. Only
+ * stored, unsigned, non-ZIP64 entries can be nested, anything else is extracted as before.
+ */
+public final class NestedJar {
+    private static final String HANDLER_PACKAGE = "org.leavesmc.leavesclip.loader";
+    private static final String SEPARATOR = "!/";
+    private static final Handler HANDLER = new Handler();
+    private static final Map<Path, Outer> OUTERS = new ConcurrentHashMap<>();
+    private static final Map<String, NestedJar> OPEN = new ConcurrentHashMap<>();
+
+    private final Path outer;
+    private final URL url;
+    private final ByteBuffer content;
+    private final Map<String, ZipDirectory.Entry> entries;
+    private final @Nullable Manifest manifest;
+    private final boolean multiRelease;
+
+    private NestedJar(final Path outer, final URL url, final ByteBuffer content, final Map<String, ZipDirectory.Entry> entries) throws IOException {
+        this.outer = outer;
+        this.url = url;
+        this.content = content;
+        this.entries = entries;
+        final ZipDirectory.Entry manifestEntry = entries.get(JarFile.MANIFEST_NAME);
+        this.manifest = manifestEntry == null ? null : new Manifest(toStream(ZipDirectory.content(content, manifestEntry)));
+        this.multiRelease = this.manifest != null
+            && "true".equalsIgnoreCase(this.manifest.getMainAttributes().getValue(Attributes.Name.MULTI_RELEASE));
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("leavesclip.nested-libraries");
+    }
+
+    /**
+     * Makes {@code nested:} URLs parseable everywhere, also when they are created from a string.
+     */
+    public static void register() {
+        final String packages = System.getProperty("java.protocol.handler.pkgs");
+        if (packages == null || packages.isEmpty()) {
+            System.setProperty("java.protocol.handler.pkgs", HANDLER_PACKAGE);
+        } else if (!Set.of(packages.split("\\|")).contains(HANDLER_PACKAGE)) {
+            System.setProperty("java.protocol.handler.pkgs", packages + "|" + HANDLER_PACKAGE);
+        }
+    }
+
+    /**
+     * Opens the given entry of the outer jar, if it can be read in place.
+     *
+     * @return the nested jar, or {@code null} if the entry does not exist or has to be extracted
+     */
+    public static @Nullable NestedJar tryOpen(final Path outer, final String entryName) {
+        try {
+            final Outer outerJar = outer(outer);
+            final ZipDirectory.Entry entry = outerJar.entries.get(entryName);
+            if (entry == null || entry.method() != ZipDirectory.STORED) {
+                return null;
+            }
+            final NestedJar jar = open(outer, entryName);
+            if (jar.isSigned()) {
+                // Signatures are only verified by JarFile, signed jars keep being extracted
+                return null;
+            }
+            return jar;
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Extracting " + entryName + ", it can not be read in place", e);
+            return null;
+        }
+    }
+
+    /**
+     * Finds where an uncompressed entry of a jar is stored, so it can be copied without going through a stream.
+     *
+     * @return the range of the entry in {@code jar}, or {@code null} if it does not exist, is compressed, or the jar can
+     * not be read
+     */
+    public static @Nullable Range findStored(final Path jar, final String entryName) {
+        try {
+            final Outer outerJar = outer(jar);
+            final ZipDirectory.Entry entry = outerJar.entries.get(entryName);
+            if (entry == null || entry.method() != ZipDirectory.STORED) {
+                return null;
+            }
+            return new Range(ZipDirectory.dataOffset(outerJar.mapping, entry), entry.size());
+        } catch (final IOException e) {
+            Leavesclip.logger.debug("Failed to locate " + entryName + " in " + jar, e);
+            return null;
+        }
+    }
+
+    /**
+     * Drops the mappings and directories of outer jars kept for {@link #findStored}, once nothing is served from them.
+     */
+    public static void releaseOuters() {
+        OUTERS.clear();
+    }
+
+    /**
+     * @param url a {@code nested:} URL of a jar, without a resource part
+     */
+    public static NestedJar open(final URL url) throws IOException {
+        final Location location = Location.parse(url);
+        if (location.resource != null) {
+            throw new MalformedURLException("Not a nested jar: " + url);
+        }
+        return open(location.outer, location.entry);
+    }
+
+    static NestedJar open(final Path outer, final String entryName) throws IOException {
+        final String key = outer.toAbsolutePath().normalize() + SEPARATOR + entryName;
+        final NestedJar cached = OPEN.get(key);
+        if (cached != null) {
+            return cached;
+        }
+
+        final Outer outerJar = outer(outer);
+        final ZipDirectory.Entry entry = outerJar.entries.get(entryName);
+        if (entry == null) {
+            throw new IOException(entryName + " not found in " + outer);
+        }
+        if (entry.method() != ZipDirectory.STORED) {
+            throw new IOException(entryName + " is compressed in " + outer);
+        }
+        final ByteBuffer content = ZipDirectory.data(outerJar.mapping, entry);
+        final NestedJar jar = new NestedJar(outer.toAbsolutePath().normalize(), url(outer, entryName), content, ZipDirectory.read(content));
+        final NestedJar previous = OPEN.putIfAbsent(key, jar);
+        return previous == null ? jar : previous;
+    }
+
+    private static Outer outer(final Path outer) throws IOException {
+        final Path path = outer.toAbsolutePath().normalize();
+        final Outer cached = OUTERS.get(path);
+        if (cached != null) {
+            return cached;
+        }
+        final ByteBuffer mapping;
+        try (final FileChannel channel = FileChannel.open(path)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(path + " is too large to be mapped");
+            }
+            // The mapping stays valid after the channel is closed
+            mapping = channel.map(READ_ONLY, 0, channel.size());
+        }
+        final Outer outerJar = new Outer(mapping, ZipDirectory.read(mapping));
+        final Outer previous = OUTERS.putIfAbsent(path, outerJar);
+        return previous == null ? outerJar : previous;
+    }
+
+    static URL url(final Path outer, final String entryName) throws MalformedURLException {
+        return toUrl(outer.toAbsolutePath().normalize().toUri().getPath() + SEPARATOR + entryName);
+    }
+
+    /**
+     * @param file the part after {@code nested:}, not encoded yet
+     */
+    private static URL toUrl(final String file) throws MalformedURLException {
+        try {
+            return URL.of(new URI("nested", file, null), HANDLER);
+        } catch (final URISyntaxException e) {
+            throw (MalformedURLException) new MalformedURLException("Invalid nested URL for " + file).initCause(e);
+        }
+    }
+
+    public URL url() {
+        return this.url;
+    }
+
+    /**
+     * The jar this one is stored in.
+     */
+    public Path outer() {
+        return this.outer;
+    }
+
+    /**
+     * The bytes of the whole nested jar, a view of the mapping.
+     */
+    public ByteBuffer content() {
+        return this.content.asReadOnlyBuffer();
+    }
+
+    public @Nullable Manifest manifest() {
+        return this.manifest;
+    }
+
+    private boolean isSigned() {
+        return this.entries.keySet().stream().anyMatch(name ->
+            name.startsWith("META-INF/") && name.indexOf('/', "META-INF/".length()) < 0
+                && (name.endsWith(".SF") || name.endsWith(".RSA") || name.endsWith(".DSA") || name.endsWith(".EC"))
+        );
+    }
+
+    /**
+     * Looks up an entry as {@link JarFile} does for the runtime version, multi-release jars included.
+     */
+    public @Nullable Entry entry(final String name) {
+        if (this.multiRelease && !name.startsWith("META-INF/")) {
+            for (int version = Runtime.version().feature(); version >= 9; version--) {
+                final ZipDirectory.Entry versioned = this.entries.get("META-INF/versions/" + version + "/" + name);
+                if (versioned != null) {
+                    return new Entry(this, versioned);
+                }
+            }
+        }
+        final ZipDirectory.Entry entry = this.entries.get(name);
+        return entry == null ? null : new Entry(this, entry);
+    }
+
+    /**
+     * Looks up an entry by its real name, as used in URLs.
+     */
+    @Nullable Entry rawEntry(final String name) {
+        final ZipDirectory.Entry entry = this.entries.get(name);
+        return entry == null ? null : new Entry(this, entry);
+    }
+
+    /**
+     * The names entries are looked up with, as {@link JarFile#versionedStream()}.
+     */
+    public Stream<String> versionedNames() {
+        if (!this.multiRelease) {
+            return this.entries.keySet().stream();
+        }
+        final int runtime = Runtime.version().feature();
+        final Set<String> names = new LinkedHashSet<>();
+        for (final String name : this.entries.keySet()) {
+            if (!name.startsWith("META-INF/versions/")) {
+                names.add(name);
+                continue;
+            }
+            final int slash = name.indexOf('/', "META-INF/versions/".length());
+            if (slash < 0) {
+                continue;
+            }
+            try {
+                if (Integer.parseInt(name.substring("META-INF/versions/".length(), slash)) <= runtime) {
+                    names.add(name.substring(slash + 1));
+                }
+            } catch (final NumberFormatException ignored) {
+                // Not a versioned entry
+            }
+        }
+        return names.stream().filter(name -> !name.isEmpty());
+    }
+
+    static InputStream toStream(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    /**
+     * An entry of a nested jar.
+     */
+    public static final class Entry {
+        private final NestedJar jar;
+        private final ZipDirectory.Entry entry;
+
+        private Entry(final NestedJar jar, final ZipDirectory.Entry entry) {
+            this.jar = jar;
+            this.entry = entry;
+        }
+
+        /**
+         * The uncompressed bytes, a view of the mapping if the entry is stored.
+         */
+        public ByteBuffer content() throws IOException {
+            return ZipDirectory.content(this.jar.content, this.entry);
+        }
+
+        public InputStream open() throws IOException {
+            return toStream(this.content());
+        }
+
+        public long size() {
+            return this.entry.size();
+        }
+
+        public URL url() {
+            try {
+                // Multi-release entries are addressed by their versioned name, as URLClassLoader does
+                return toUrl(this.jar.url.toURI().getSchemeSpecificPart() + SEPARATOR + this.entry.name());
+            } catch (final URISyntaxException | MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Where an entry's bytes are in a jar file.
+     */
+    public record Range(long offset, long length) {
+    }
+
+    private record Outer(ByteBuffer mapping, Map<String, ZipDirectory.Entry> entries) {
+    }
+
+    /**
+     * The parts of a {@code nested:} URL.
+     */
+    record Location(Path outer, String entry, @Nullable String resource) {
+        static Location parse(final URL url) throws MalformedURLException {
+            final String file = url.getFile();
+            final int first = file.indexOf(SEPARATOR);
+            if (!"nested".equals(url.getProtocol()) || first < 0) {
+                throw new MalformedURLException("Not a nested URL: " + url);
+            }
+            final Path outer;
+            try {
+                outer = Path.of(URI.create("file://" + file.substring(0, first)));
+            } catch (final IllegalArgumentException e) {
+                throw new MalformedURLException("Invalid nested URL: " + url);
+            }
+            final String rest = file.substring(first + SEPARATOR.length());
+            final int second = rest.indexOf(SEPARATOR);
+            if (second < 0) {
+                return new Location(outer, decode(rest), null);
+            }
+            return new Location(outer, decode(rest.substring(0, second)), decode(rest.substring(second + SEPARATOR.length())));
+        }
+
+        private static String decode(final String encoded) {
+            // Only percent escapes, a plus is a plus in a path
+            return URLDecoder.decode(encoded.replace("+", "%2B"), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static final class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        private ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return this.buffer.hasRemaining() ? Byte.toUnsignedInt(this.buffer.get()) : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!this.buffer.hasRemaining()) {
+                return -1;
+            }
+            final int count = Math.min(len, this.buffer.remaining());
+            this.buffer.get(b, off, count);
+            return count;
+        }
+
+        @Override
+        public long skip(final long n) {
+            final int count = (int) Math.max(0, Math.min(n, this.buffer.remaining()));
+            this.buffer.position(this.buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return this.buffer.remaining();
+        }
+    }
+}
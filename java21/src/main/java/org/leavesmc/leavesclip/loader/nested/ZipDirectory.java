@@ -0,0 +1,139 @@
+package org.leavesmc.leavesclip.loader.nested;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Minimal reader for the central directory of a zip file held in a {@link ByteBuffer}, enough to find an entry and
+ * read it in place. ZIP64 and encrypted entries are not supported.
+ */
+final class ZipDirectory {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int END_SIZE = 22;
+
+    private ZipDirectory() {
+    }
+
+    /**
+     * @return all entries by name, in central directory order
+     */
+    static Map<String, Entry> read(final ByteBuffer zip) throws IOException {
+        final ByteBuffer buffer = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int end = findEnd(buffer);
+        final int count = Short.toUnsignedInt(buffer.getShort(end + 10));
+        final long directoryOffset = Integer.toUnsignedLong(buffer.getInt(end + 16));
+        if (count == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported");
+        }
+
+        final Map<String, Entry> entries = new LinkedHashMap<>(count * 2);
+        int position = (int) directoryOffset;
+        for (int i = 0; i < count; i++) {
+            if (buffer.getInt(position) != CENTRAL_SIGNATURE) {
+                throw new IOException("Invalid central directory");
+            }
+            final int flags = Short.toUnsignedInt(buffer.getShort(position + 8));
+            final int method = Short.toUnsignedInt(buffer.getShort(position + 10));
+            final long compressedSize = Integer.toUnsignedLong(buffer.getInt(position + 20));
+            final long size = Integer.toUnsignedLong(buffer.getInt(position + 24));
+            final int nameLength = Short.toUnsignedInt(buffer.getShort(position + 28));
+            final int extraLength = Short.toUnsignedInt(buffer.getShort(position + 30));
+            final int commentLength = Short.toUnsignedInt(buffer.getShort(position + 32));
+            final long localOffset = Integer.toUnsignedLong(buffer.getInt(position + 42));
+            if ((flags & 1) != 0) {
+                throw new IOException("Encrypted entries are not supported");
+            }
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 entries are not supported");
+            }
+
+            final byte[] name = new byte[nameLength];
+            buffer.get(position + 46, name);
+            final String entryName = new String(name, StandardCharsets.UTF_8);
+            entries.putIfAbsent(entryName, new Entry(entryName, method, compressedSize, size, localOffset));
+            position += 46 + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private static int findEnd(final ByteBuffer buffer) throws IOException {
+        // The end record is followed by a comment of at most 64 KiB
+        final int last = buffer.limit() - END_SIZE;
+        for (int position = last; position >= 0 && position >= last - 0xFFFF; position--) {
+            if (buffer.getInt(position) == END_SIGNATURE) {
+                return position;
+            }
+        }
+        throw new IOException("Not a zip file");
+    }
+
+    /**
+     * @return the position of the raw, possibly compressed, data of the entry in {@code zip}
+     */
+    static int dataOffset(final ByteBuffer zip, final Entry entry) throws IOException {
+        final ByteBuffer buffer = zip.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        final int local = (int) entry.localOffset();
+        if (buffer.getInt(local) != LOCAL_SIGNATURE) {
+            throw new IOException("Invalid local header for " + entry.name());
+        }
+        final int nameLength = Short.toUnsignedInt(buffer.getShort(local + 26));
+        final int extraLength = Short.toUnsignedInt(buffer.getShort(local + 28));
+        return local + 30 + nameLength + extraLength;
+    }
+
+    /**
+     * @return the raw, possibly compressed, data of the entry as a view of {@code zip}
+     */
+    static ByteBuffer data(final ByteBuffer zip, final Entry entry) throws IOException {
+        return zip.slice(dataOffset(zip, entry), (int) entry.compressedSize());
+    }
+
+    /**
+     * @return the uncompressed content of the entry, a view of {@code zip} if it is stored
+     */
+    static ByteBuffer content(final ByteBuffer zip, final Entry entry) throws IOException {
+        final ByteBuffer data = data(zip, entry);
+        if (entry.method() == STORED) {
+            return data;
+        }
+        if (entry.method() != DEFLATED) {
+            throw new IOException("Unsupported compression method " + entry.method() + " for " + entry.name());
+        }
+
+        final byte[] content = new byte[(int) entry.size()];
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            int length = 0;
+            while (length < content.length) {
+                final int read = inflater.inflate(content, length, content.length - length);
+                if (read == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += read;
+            }
+            if (length != content.length) {
+                throw new IOException("Truncated entry " + entry.name());
+            }
+        } catch (final DataFormatException e) {
+            throw new IOException("Invalid compressed data for " + entry.name(), e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(content);
+    }
+
+    record Entry(String name, int method, long compressedSize, long size, long localOffset) {
+    }
+}
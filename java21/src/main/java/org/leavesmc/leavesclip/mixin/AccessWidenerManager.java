@@ -13,6 +13,7 @@ import org.objectweb.asm.Opcodes;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLClassLoader;
+import java.util.Set;
 
 public class AccessWidenerManager {
     private static final Logger logger = new SimpleLogger("AccessWidener");
@@ -20,29 +21,56 @@ public class AccessWidenerManager {
     private static final AccessWidener instance = new AccessWidener();
 
     public static void initAccessWidener(URLClassLoader classLoader) {
-        AccessWidenerReader reader = new AccessWidenerReader(instance);
         for (String config : MixinJarResolver.accessWidenerConfigs) {
-            applyAccessWidenerConfig(classLoader, config, reader);
+            applyAccessWidenerConfig(classLoader, config);
         }
     }
 
-    private static void applyAccessWidenerConfig(URLClassLoader classLoader, String config, AccessWidenerReader reader) {
+    private static void applyAccessWidenerConfig(URLClassLoader classLoader, String config) {
         try (InputStream inputStream = classLoader.getResourceAsStream(config)) {
             if (inputStream == null) {
                 logger.warn("Access widener config not found: " + config);
                 return;
             }
-            reader.read(inputStream.readAllBytes(), namespace);
+            readAccessWidener(inputStream.readAllBytes());
         } catch (IOException e) {
             logger.warn("Failed to load access widener: " + config, e);
         }
     }
 
+    static void readAccessWidener(byte[] content) {
+        new AccessWidenerReader(instance).read(content, namespace);
+    }
+
+    /**
+     * Whether the access widener changes the given class, including the inner class attributes of outer classes.
+     */
+    public static boolean isTarget(String className) {
+        return instance.getTargets().contains(className);
+    }
+
+    static Set<String> getTargets() {
+        return instance.getTargets();
+    }
+
     public static byte[] applyAccessWidener(byte[] classData) {
-        ClassReader reader = new ClassReader(classData);
+        return applyAccessWidener(new ClassReader(classData));
+    }
+
+    /**
+     * Widens a class that was already parsed, copying everything else from the reader as it is.
+     */
+    public static byte[] applyAccessWidener(ClassReader reader) {
         ClassWriter writer = new ClassWriter(reader, 0);
-        ClassVisitor visitor = AccessWidenerClassVisitor.createClassVisitor(Opcodes.ASM9, writer, instance);
-        reader.accept(visitor, 0);
+        reader.accept(createClassVisitor(writer), 0);
         return writer.toByteArray();
     }
+
+    /**
+     * Chains the access widener in front of {@code next}, so a class can be widened while it is written, e.g. from
+     * the tree Mixin transformed.
+     */
+    public static ClassVisitor createClassVisitor(ClassVisitor next) {
+        return AccessWidenerClassVisitor.createClassVisitor(Opcodes.ASM9, next, instance);
+    }
 }
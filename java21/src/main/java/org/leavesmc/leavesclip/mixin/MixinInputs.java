@@ -0,0 +1,69 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Everything the result of transforming a class depends on: the Mixin version, the launcher jar, every jar of the
+ * class loader (server, libraries and mixin jars, by path, size and modification time), the installed plugins and the
+ * names of the mixin and access widener configs.
+ */
+final class MixinInputs {
+    private MixinInputs() {
+    }
+
+    /**
+     * @return one line per input, readable enough to tell why a cache or overlay was not used
+     */
+    static String describe(URL[] urls, List<String> configs, String mixinVersion) throws IOException {
+        StringBuilder text = new StringBuilder().append(mixinVersion).append('\n');
+        if (UrlUtil.LOADER_CODE_SOURCE != null) {
+            appendStamp(text, UrlUtil.LOADER_CODE_SOURCE);
+        }
+        for (URL url : urls) {
+            if (!"file".equals(url.getProtocol())) {
+                // Nested jars are covered by the launcher jar
+                text.append(url).append('\n');
+                continue;
+            }
+            try {
+                appendStamp(text, Path.of(url.toURI()));
+            } catch (URISyntaxException e) {
+                throw new IOException("Invalid classpath entry " + url, e);
+            }
+        }
+        configs.forEach(config -> text.append(config).append('\n'));
+        // Mixin conditions may depend on which plugins are installed
+        File[] plugins = new File(PluginResolver.PLUGIN_DIRECTORY).listFiles((dir, name) -> name.toLowerCase().endsWith(".jar"));
+        if (plugins != null) {
+            Arrays.sort(plugins);
+            for (File plugin : plugins) {
+                appendStamp(text, plugin.toPath());
+            }
+        }
+        return text.toString();
+    }
+
+    static String fingerprint(String inputs) {
+        return HexFormat.of().formatHex(Util.newSha256Digest().digest(inputs.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void appendStamp(StringBuilder text, Path file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        text.append(file.toAbsolutePath()).append('\t')
+            .append(attributes.size()).append('\t')
+            .append(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS)).append('\n');
+    }
+}
@@ -0,0 +1,123 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.logger.Logger;
+import org.leavesmc.leavesclip.logger.SimpleLogger;
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * Classes transformed ahead of time, so a server can start without running Mixin or the access widener.
+ * <p>
+ * A patch-only run with {@code -Dleavesclip.mixin-aot=true} (and mixin enabled) applies every mixin and access widener
+ * to every class they target and writes the results to an overlay jar. Its manifest holds the fingerprint of the
+ * {@link MixinInputs} it was built from, which are also listed in {@value #INPUTS_ENTRY}. Later starts define these
+ * classes before looking at the classpath, as long as the inputs still match; otherwise the overlay is ignored and
+ * classes are transformed as they are loaded.
+ * <p>
+ * Only the transformed classes are kept, nothing that ran or was generated while Mixin applied them. So no overlay is
+ * written when a config with mixins has a config plugin, whose {@code preApply} and {@code postApply} would not be
+ * called, or when a class uses MixinExtras sugar, whose {@code LocalRef} implementations would not be generated.
+ */
+public final class MixinOverlay {
+    private static final Logger logger = new SimpleLogger("Mixin");
+    private static final Attributes.Name INPUTS_ATTRIBUTE = new Attributes.Name("Leavesclip-Mixin-Inputs");
+    private static final String INPUTS_ENTRY = "META-INF/leavesclip/mixin-inputs.txt";
+
+    private final Map<String, byte[]> classes;
+
+    private MixinOverlay(Map<String, byte[]> classes) {
+        this.classes = classes;
+    }
+
+    public static boolean isEnabled() {
+        return Boolean.getBoolean("leavesclip.mixin-aot");
+    }
+
+    /**
+     * Reads the overlay, or returns {@code null} if there is none or it was built from other inputs.
+     */
+    static @Nullable MixinOverlay open(Path jar, String inputs) {
+        if (!Files.isRegularFile(jar)) {
+            return null;
+        }
+        try (JarFile jarFile = new JarFile(jar.toFile(), false)) {
+            Manifest manifest = jarFile.getManifest();
+            String fingerprint = manifest == null ? null : manifest.getMainAttributes().getValue(INPUTS_ATTRIBUTE);
+            if (!MixinInputs.fingerprint(inputs).equals(fingerprint)) {
+                logger.info("Mixin overlay {} was built from other inputs, transforming classes as they are loaded", jar);
+                return null;
+            }
+
+            Map<String, byte[]> classes = new ConcurrentHashMap<>();
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (!name.endsWith(".class") || name.startsWith("META-INF/")) {
+                    continue;
+                }
+                try (InputStream in = jarFile.getInputStream(entry)) {
+                    classes.put(name.substring(0, name.length() - ".class".length()).replace('/', '.'), in.readAllBytes());
+                }
+            }
+            logger.info("Using {} classes transformed ahead of time from {}", classes.size(), jar);
+            return new MixinOverlay(classes);
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to read the mixin overlay, transforming classes as they are loaded", e);
+            return null;
+        }
+    }
+
+    /**
+     * @return the transformed class, or {@code null} if it is not in the overlay
+     */
+    byte @Nullable [] get(String className) {
+        return classes.get(className);
+    }
+
+    /**
+     * Drops a class once it is defined, its bytes are not needed anymore.
+     */
+    void remove(String className) {
+        classes.remove(className);
+    }
+
+    static void write(Path jar, String inputs, Map<String, byte[]> classes) throws IOException {
+        Manifest manifest = new Manifest();
+        manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        manifest.getMainAttributes().put(INPUTS_ATTRIBUTE, MixinInputs.fingerprint(inputs));
+
+        Files.createDirectories(jar.getParent());
+        Path tempFile = Util.tempSibling(jar);
+        try {
+            try (OutputStream out = Files.newOutputStream(tempFile); JarOutputStream jarOut = new JarOutputStream(out, manifest)) {
+                jarOut.putNextEntry(new JarEntry(INPUTS_ENTRY));
+                jarOut.write(inputs.getBytes(StandardCharsets.UTF_8));
+                jarOut.closeEntry();
+                for (Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                    jarOut.putNextEntry(new JarEntry(entry.getKey().replace('.', '/') + ".class"));
+                    jarOut.write(entry.getValue());
+                    jarOut.closeEntry();
+                }
+            }
+            Util.moveAtomically(tempFile, jar);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.jetbrains.annotations.Nullable;
+import org.spongepowered.asm.mixin.MixinEnvironment;
+import org.spongepowered.asm.mixin.Mixins;
+import org.spongepowered.asm.mixin.extensibility.IMixinConfig;
+import org.spongepowered.asm.mixin.transformer.Config;
+import org.spongepowered.asm.mixin.transformer.IMixinTransformer;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The classes the selected mixin configs apply to, so all other classes can skip the transformer.
+ * <p>
+ * Targets are only known once Mixin has selected a config, and Mixin drops the configs it selected from
+ * {@link Mixins#getConfigs()}. So configs are collected before Mixin is asked to select them, and every config seen
+ * is kept. Mixin only selects configs until it transformed its first class, configs registered later stay unvisited
+ * and never apply. Classes in a mixin package always count as targets, the transformer is what refuses to load mixin
+ * classes directly.
+ */
+final class MixinTargets {
+    private final Set<Config> configs;
+    private final int unvisited;
+    private final Set<String> targets;
+    private final List<String> mixinPackages;
+
+    private MixinTargets(Set<Config> configs, int unvisited, Set<String> targets, List<String> mixinPackages) {
+        this.configs = configs;
+        this.unvisited = unvisited;
+        this.targets = targets;
+        this.mixinPackages = mixinPackages;
+    }
+
+    /**
+     * Has Mixin select the registered configs and collects their targets, under the transform lock.
+     *
+     * @param previous the last targets, whose configs Mixin no longer lists
+     */
+    static MixinTargets select(IMixinTransformer transformer, @Nullable MixinTargets previous) {
+        Set<Config> configs = new LinkedHashSet<>();
+        if (previous != null) {
+            configs.addAll(previous.configs);
+        }
+        configs.addAll(Mixins.getConfigs());
+        // Mixin selects configs before it answers, whatever the class
+        transformer.couldTransformClass(MixinEnvironment.getCurrentEnvironment(), MixinTargets.class.getName());
+
+        Set<String> targets = new HashSet<>();
+        List<String> mixinPackages = new ArrayList<>();
+        for (Config config : configs) {
+            IMixinConfig mixinConfig = config.getConfig();
+            for (String target : mixinConfig.getTargets()) {
+                targets.add(target.replace('/', '.'));
+            }
+            String mixinPackage = mixinConfig.getMixinPackage();
+            if (mixinPackage != null && !mixinPackage.isEmpty()) {
+                mixinPackages.add(mixinPackage.replace('/', '.'));
+            }
+        }
+        return new MixinTargets(configs, Mixins.getUnvisitedCount(), targets, mixinPackages);
+    }
+
+    /**
+     * @return the configs with mixins whose config plugin Mixin calls as it applies them
+     */
+    List<String> configsWithPlugins() {
+        List<String> names = new ArrayList<>();
+        for (Config config : configs) {
+            IMixinConfig mixinConfig = config.getConfig();
+            if (mixinConfig.getPlugin() != null && !mixinConfig.getTargets().isEmpty()) {
+                names.add(mixinConfig.getName());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @return whether configs were registered since these targets were collected
+     */
+    boolean isStale() {
+        return Mixins.getUnvisitedCount() != unvisited;
+    }
+
+    /**
+     * @return the classes the configs name as targets, without the mixin packages
+     */
+    Set<String> classes() {
+        return targets;
+    }
+
+    boolean isTarget(String className) {
+        if (targets.contains(className)) {
+            return true;
+        }
+        for (String mixinPackage : mixinPackages) {
+            if (className.startsWith(mixinPackage)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -2,60 +2,450 @@ package org.leavesmc.leavesclip.mixin;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.loader.IndexedURLClassLoader;
+import org.leavesmc.leavesclip.logger.Logger;
+import org.leavesmc.leavesclip.logger.SimpleLogger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.tree.ClassNode;
+import org.spongepowered.asm.launch.MixinBootstrap;
 import org.spongepowered.asm.mixin.MixinEnvironment;
 import org.spongepowered.asm.mixin.transformer.IMixinTransformer;
+import org.spongepowered.asm.service.MixinService;
+import org.spongepowered.asm.transformers.MixinClassWriter;
+import org.spongepowered.asm.util.ReEntranceLock;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.CodeSource;
 import java.security.ProtectionDomain;
 import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
-public class MixinURLClassLoader extends URLClassLoader {
+/**
+ * Applies mixins and access wideners to the classes it loads.
+ * <p>
+ * The loader is parallel capable, and a class is only locked while it is defined: reading, the access widener and Mixin
+ * run before that, and the supertypes of a class are loaded first, so defining it does not wait for anything. Mixin is
+ * called under its {@link ReEntranceLock}, which counts nested transforms without any synchronization of its own, and
+ * while it holds that lock it loads classes itself, config plugins while selecting configs and whatever those load
+ * while mixins are applied. A thread holding a class lock never waits for the transform lock, so these loads cannot
+ * deadlock against it. Mixin only applies mixins to a class once, so a class transformed by one thread is kept until
+ * it is defined, and other threads loading it at the same time define the same result.
+ * <p>
+ * Transformed mixin targets are kept in a {@link TransformCache} and defined from it by later starts, with the
+ * safeguards of the {@link MixinOverlay}. Mixin keeps what it applied to a class and reads it back when it transforms
+ * subclasses, which it can not for a class defined from the cache, so a class is only defined from the cache if every
+ * mixin target extending it is cached as well.
+ */
+public class MixinURLClassLoader extends IndexedURLClassLoader {
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    private static final Logger logger = new SimpleLogger("Mixin");
+    /**
+     * What a class using MixinExtras sugar refers to, under whatever package a copy of MixinExtras is relocated to:
+     * the public {@code LocalRef} types of {@code @Local} and {@code @Share}, and the internal package their generated
+     * implementations are defined in, taken from MixinExtras 0.4.1. The public types are what the check relies on,
+     * should the internal package move. Class names are plain ASCII in the constant pool.
+     */
+    private static final List<byte[]> SUGAR_PACKAGES = List.of(
+        "/mixinextras/sugar/ref/".getBytes(StandardCharsets.US_ASCII),
+        "/mixinextras/sugar/impl/ref/generated/".getBytes(StandardCharsets.US_ASCII)
+    );
 
     private final IMixinTransformer transformer;
+    private final ReEntranceLock transformLock = MixinService.getService().getReEntranceLock();
     private final ProtectionDomain dummyDomain = new ProtectionDomain(new CodeSource(this.getURLs()[0], (Certificate[]) null), null);
+    private final @Nullable String inputs;
+    private final @Nullable TransformCache transformCache;
+    private final @Nullable MixinOverlay overlay;
+    private volatile @Nullable MixinTargets mixinTargets;
+    private volatile @Nullable CachedTargets cachedTargets;
+    private final Map<String, byte[]> pendingClasses = new ConcurrentHashMap<>();
+    private final LongAdder aheadOfTimeClasses = new LongAdder();
+    private final LongAdder untouchedClasses = new LongAdder();
+    private final LongAdder cachedClasses = new LongAdder();
+    private final LongAdder widenedClasses = new LongAdder();
+    private final LongAdder transformedClasses = new LongAdder();
 
-    public MixinURLClassLoader(URL[] urls, ClassLoader parent) {
-        super(urls, parent);
+    /**
+     * @param cacheDir   where transformed mixin targets are cached between starts, or {@code null} to transform them on
+     *                   every start
+     * @param overlayJar the {@link MixinOverlay} to define classes from, or {@code null} to transform them at runtime
+     */
+    public MixinURLClassLoader(URL[] urls, ClassLoader parent, @Nullable Path indexFile, @Nullable Path cacheDir, @Nullable Path overlayJar) {
+        super(urls, parent, indexFile);
         Object active = MixinEnvironment.getDefaultEnvironment().getActiveTransformer();
         if (!(active instanceof IMixinTransformer)) {
             throw new IllegalStateException("Cannot found MixinTransformer");
         }
         this.transformer = (IMixinTransformer) active;
+
+        List<String> configs = new ArrayList<>(MixinJarResolver.mixinConfigs);
+        configs.addAll(MixinJarResolver.accessWidenerConfigs);
+        String inputs = null;
+        try {
+            inputs = MixinInputs.describe(urls, configs, MixinBootstrap.VERSION);
+        } catch (IOException e) {
+            logger.warn("Failed to read the mixin inputs, transforming classes as they are loaded", e);
+        }
+        this.inputs = inputs;
+        this.transformCache = cacheDir == null || inputs == null ? null : TransformCache.open(cacheDir, inputs);
+        this.overlay = overlayJar == null || inputs == null ? null : MixinOverlay.open(overlayJar, inputs);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> logger.info(
+            "Classes loaded: {} ahead of time, {} untouched, {} from the transform cache, {} access widened only, {} through mixin",
+            aheadOfTimeClasses.sum(), untouchedClasses.sum(), cachedClasses.sum(), widenedClasses.sum(), transformedClasses.sum()
+        ), "Leavesclip Class Stats"));
     }
 
+    /**
+     * Asks the parent first like {@link ClassLoader} does, but without holding the lock of the class.
+     */
     @Override
-    public @Nullable URL getResource(String name) {
-        Objects.requireNonNull(name);
-        if (name.endsWith(".class")) {
-            return super.getResource(name);
-        } else {
-            URL result = findResource(name);
-            if (result != null) {
-                return result;
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!Thread.holdsLock(transformLock)) {
+            selectConfigs();
+        }
+        Class<?> loaded = findLoadedClass(name);
+        if (loaded == null) {
+            try {
+                loaded = getParent().loadClass(name);
+            } catch (ClassNotFoundException e) {
+                loaded = findClass(name);
             }
-            return super.getResource(name);
         }
+        if (resolve) {
+            resolveClass(loaded);
+        }
+        return loaded;
+    }
+
+    /**
+     * Has Mixin select the configs registered since the last call, and collects their targets.
+     */
+    private MixinTargets selectConfigs() {
+        MixinTargets targets = mixinTargets;
+        if (targets == null || targets.isStale()) {
+            synchronized (transformLock) {
+                targets = mixinTargets;
+                if (targets == null || targets.isStale()) {
+                    targets = MixinTargets.select(transformer, targets);
+                    mixinTargets = targets;
+                }
+            }
+        }
+        return targets;
+    }
+
+    @Override
+    protected boolean isLocalFirst(String name) {
+        // Resources of the mixin jars come before the parent's, classes are delegated as usual
+        return !name.endsWith(".class");
     }
 
     @Override
     protected Class<?> findClass(@NotNull String name) throws ClassNotFoundException {
-        String path = name.replace('.', '/') + ".class";
-        try (InputStream in = getResourceAsStream(path)) {
+        byte[] bytes;
+        LongAdder loadedAs;
+        try {
+            byte[] aheadOfTime = overlay == null ? null : overlay.get(name);
+            if (aheadOfTime != null) {
+                bytes = aheadOfTime;
+                loadedAs = aheadOfTimeClasses;
+                loadSupertypes(bytes);
+            } else {
+                byte[] original = read(name);
+                loadSupertypes(original);
+                MixinTargets targets = mixinTargets;
+                // Unknown for the classes Mixin loads while it selects the first configs
+                boolean mixinTarget = targets == null || targets.isTarget(name);
+                boolean widenerTarget = AccessWidenerManager.isTarget(name);
+                if (mixinTarget) {
+                    Set<String> servable = targets == null ? null : servableFromCache(targets);
+                    byte[] originalHash = servable == null ? null : TransformCache.hash(original);
+                    byte[] cached = originalHash == null || !servable.contains(name) ? null : transformCache.get(name, originalHash);
+                    if (cached != null) {
+                        bytes = cached;
+                        loadedAs = cachedClasses;
+                    } else {
+                        bytes = transformOnce(name, original, widenerTarget, originalHash);
+                        if (bytes == null) {
+                            return Objects.requireNonNull(findLoadedClass(name));
+                        }
+                        loadedAs = transformedClasses;
+                    }
+                    // Mixins may have added interfaces
+                    loadSupertypes(bytes);
+                } else if (widenerTarget) {
+                    bytes = AccessWidenerManager.applyAccessWidener(new ClassReader(original));
+                    loadedAs = widenedClasses;
+                } else {
+                    // Most classes, e.g. all of the libraries, are defined as they are
+                    bytes = original;
+                    loadedAs = untouchedClasses;
+                }
+            }
+        } catch (RuntimeException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                loaded = defineClass(name, bytes, 0, bytes.length, dummyDomain);
+                loadedAs.increment();
+            }
+            pendingClasses.remove(name);
+            if (overlay != null) {
+                overlay.remove(name);
+            }
+            return loaded;
+        }
+    }
+
+    private byte[] read(String name) throws ClassNotFoundException {
+        try (InputStream in = getResourceAsStream(name.replace('.', '/') + ".class")) {
             if (in == null) {
                 throw new ClassNotFoundException(name);
             }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
 
-            byte[] original = in.readAllBytes();
-            byte[] mixin = transformer.transformClass(MixinEnvironment.getCurrentEnvironment(), name, original);
-            byte[] transformed = AccessWidenerManager.applyAccessWidener(mixin);
+    private void loadSupertypes(byte[] bytes) {
+        ClassReader reader = new ClassReader(bytes);
+        List<String> supertypes = new ArrayList<>(List.of(reader.getInterfaces()));
+        if (reader.getSuperName() != null) {
+            supertypes.add(reader.getSuperName());
+        }
+        for (String supertype : supertypes) {
+            try {
+                loadClass(supertype.replace('/', '.'), false);
+            } catch (ClassNotFoundException ignored) {
+                // Defining the class reports it
+            }
+        }
+    }
 
-            return defineClass(name, transformed, 0, transformed.length, dummyDomain);
-        } catch (Exception e) {
-            throw new ClassNotFoundException(name, e);
+    /**
+     * @return the mixin targets the transform cache may define, or {@code null} if it is not used for these targets
+     */
+    private @Nullable Set<String> servableFromCache(MixinTargets targets) {
+        if (transformCache == null) {
+            return null;
+        }
+        CachedTargets cached = cachedTargets;
+        if (cached == null || cached.targets() != targets) {
+            cached = new CachedTargets(targets, servable(transformCache, targets));
+            cachedTargets = cached;
+        }
+        return cached.servable();
+    }
+
+    /**
+     * A target that is not cached yet may be transformed during this start, and Mixin then needs what it applied to
+     * the supertypes of that target. So none of them is defined from the cache.
+     */
+    private @Nullable Set<String> servable(TransformCache cache, MixinTargets targets) {
+        List<String> configsWithPlugins = targets.configsWithPlugins();
+        if (!configsWithPlugins.isEmpty()) {
+            logger.info("Not caching mixin targets, the mixin configs {} have config plugins, which are called as mixins are applied", configsWithPlugins);
+            return null;
+        }
+        Set<String> servable = new HashSet<>();
+        if (cache.isEmpty()) {
+            return servable;
+        }
+        Set<String> transformedSupertypes = new HashSet<>();
+        for (String target : targets.classes()) {
+            if (!cache.contains(target)) {
+                collectSupertypes(target, transformedSupertypes);
+            }
+        }
+        for (String target : targets.classes()) {
+            if (cache.contains(target) && !transformedSupertypes.contains(target)) {
+                servable.add(target);
+            }
+        }
+        return servable;
+    }
+
+    private void collectSupertypes(String name, Set<String> supertypes) {
+        ClassReader reader;
+        try {
+            reader = new ClassReader(read(name));
+        } catch (ClassNotFoundException e) {
+            // Targets that are not on the classpath are never transformed
+            return;
         }
+        List<String> names = new ArrayList<>(List.of(reader.getInterfaces()));
+        if (reader.getSuperName() != null) {
+            names.add(reader.getSuperName());
+        }
+        for (String internalName : names) {
+            String supertype = internalName.replace('/', '.');
+            if (supertypes.add(supertype)) {
+                collectSupertypes(supertype, supertypes);
+            }
+        }
+    }
+
+    /**
+     * Transforms a mixin target, unless another thread already did and has yet to define it.
+     *
+     * @param originalHash the hash to cache the transformed class under, or {@code null} to not cache it
+     * @return the transformed class, or {@code null} if it is already defined
+     */
+    private byte @Nullable [] transformOnce(String name, byte[] original, boolean widenerTarget, byte @Nullable [] originalHash) {
+        synchronized (transformLock) {
+            // Pending classes are only dropped once they are defined, so check in this order
+            byte[] transformed = pendingClasses.get(name);
+            if (transformed == null && findLoadedClass(name) == null) {
+                transformed = transform(name, original, true, widenerTarget);
+                pendingClasses.put(name, transformed);
+                // Sugar implementations are generated as the mixins are applied
+                if (originalHash != null && !usesSugar(transformed)) {
+                    Objects.requireNonNull(transformCache).put(name, originalHash, transformed);
+                }
+            }
+            return transformed;
+        }
+    }
+
+    /**
+     * @return the transformed class, {@code original} itself if nothing changed it
+     */
+    private byte[] transform(String name, byte[] original, boolean mixinTarget, boolean widenerTarget) {
+        ClassReader reader = new ClassReader(original);
+        if (!mixinTarget) {
+            return AccessWidenerManager.applyAccessWidener(reader);
+        }
+
+        ClassNode classNode = new ClassNode();
+        reader.accept(classNode, ClassReader.EXPAND_FRAMES);
+        boolean mixinApplied;
+        synchronized (transformLock) {
+            mixinApplied = transformer.transformClass(MixinEnvironment.getCurrentEnvironment(), name, classNode);
+        }
+        if (!mixinApplied) {
+            return widenerTarget ? AccessWidenerManager.applyAccessWidener(reader) : original;
+        }
+
+        // Widen while writing the tree Mixin produced, so the class is parsed and written only once
+        ClassWriter writer = new MixinClassWriter(reader, ClassWriter.COMPUTE_MAXS | ClassWriter.COMPUTE_FRAMES);
+        classNode.accept(widenerTarget ? AccessWidenerManager.createClassVisitor(writer) : writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Applies every mixin and access widener ahead of time and writes the classes they change to a
+     * {@link MixinOverlay}, for patch-only runs. Nothing is defined, the classes are only transformed. Any previous
+     * overlay is deleted instead if the classes would not work without Mixin running.
+     */
+    public void writeOverlay(Path overlayJar) throws IOException {
+        if (inputs == null) {
+            throw new IOException("The mixin inputs could not be read");
+        }
+        MixinTargets targets = selectConfigs();
+        List<String> configsWithPlugins = targets.configsWithPlugins();
+        if (!configsWithPlugins.isEmpty()) {
+            refuseOverlay(overlayJar, "the mixin configs " + configsWithPlugins + " have config plugins, which would not be called for classes from the overlay");
+            return;
+        }
+
+        Set<String> names = new TreeSet<>(targets.classes());
+        names.addAll(AccessWidenerManager.getTargets());
+        Map<String, byte[]> originals = new LinkedHashMap<>();
+        for (String name : names) {
+            try (InputStream in = getResourceAsStream(name.replace('.', '/') + ".class")) {
+                if (in == null) {
+                    logger.warn("Target class {} is not on the classpath, skipping it", name);
+                    continue;
+                }
+                originals.put(name, in.readAllBytes());
+            }
+        }
+
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        for (String name : supertypesFirst(originals)) {
+            byte[] original = originals.get(name);
+            byte[] transformed = transform(name, original, targets.isTarget(name), AccessWidenerManager.isTarget(name));
+            if (transformed != original) {
+                if (usesSugar(transformed)) {
+                    refuseOverlay(overlayJar, name + " uses MixinExtras sugar, whose classes are generated as mixins are applied");
+                    return;
+                }
+                classes.put(name, transformed);
+            }
+        }
+        MixinOverlay.write(overlayJar, inputs, classes);
+        logger.info("Wrote {} classes transformed ahead of time to {}", classes.size(), overlayJar);
+    }
+
+    private static void refuseOverlay(Path overlayJar, String reason) throws IOException {
+        Files.deleteIfExists(overlayJar);
+        logger.warn("Not writing a mixin overlay, classes will be transformed as they are loaded: {}", reason);
+    }
+
+    private static boolean usesSugar(byte[] transformed) {
+        return SUGAR_PACKAGES.stream().anyMatch(sugarPackage -> contains(transformed, sugarPackage));
+    }
+
+    private static boolean contains(byte[] bytes, byte[] part) {
+        for (int i = 0; i <= bytes.length - part.length; i++) {
+            if (Arrays.equals(bytes, i, i + part.length, part, 0, part.length)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Orders classes like loading them would: Mixin keeps what it added to a class and reads it back when it
+     * transforms subclasses.
+     */
+    private static List<String> supertypesFirst(Map<String, byte[]> classes) {
+        List<String> order = new ArrayList<>(classes.size());
+        Set<String> visited = new HashSet<>();
+        for (String name : classes.keySet()) {
+            visit(name, classes, visited, order);
+        }
+        return order;
+    }
+
+    private static void visit(String name, Map<String, byte[]> classes, Set<String> visited, List<String> order) {
+        byte[] bytes = classes.get(name);
+        if (bytes == null || !visited.add(name)) {
+            return;
+        }
+        ClassReader reader = new ClassReader(bytes);
+        if (reader.getSuperName() != null) {
+            visit(reader.getSuperName().replace('/', '.'), classes, visited, order);
+        }
+        for (String anInterface : reader.getInterfaces()) {
+            visit(anInterface.replace('/', '.'), classes, visited, order);
+        }
+        order.add(name);
+    }
+
+    private record CachedTargets(MixinTargets targets, @Nullable Set<String> servable) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,172 @@
+package org.leavesmc.leavesclip.mixin;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.logger.Logger;
+import org.leavesmc.leavesclip.logger.SimpleLogger;
+import org.leavesmc.leavesclip.patch.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * On-disk cache of transformed mixin targets, kept in {@code <repo>/cache/mixin/<fingerprint>.classes}.
+ * <p>
+ * The fingerprint covers all {@link MixinInputs}, so any change to them starts a new cache. Every class is stored with
+ * the sha256 of its original bytes and is only used if those still match. Classes are appended as they are
+ * transformed, what was cached by earlier starts is what {@link #contains} and {@link #get} see.
+ * <p>
+ * Like the {@link MixinOverlay}, the cache only keeps the transformed classes, so the loader does not use it for
+ * configs with config plugins and does not store classes using MixinExtras sugar.
+ */
+final class TransformCache {
+    private static final Logger logger = new SimpleLogger("Mixin");
+    private static final String SUFFIX = ".classes";
+    private static final int MAGIC = 0x4C434D54;
+    private static final int VERSION = 1;
+    private static final int HASH_LENGTH = 32;
+
+    private final FileChannel channel;
+    private final @Nullable ByteBuffer mapping;
+    private final Map<String, Record> records;
+
+    private TransformCache(FileChannel channel, @Nullable ByteBuffer mapping, Map<String, Record> records) {
+        this.channel = channel;
+        this.mapping = mapping;
+        this.records = records;
+    }
+
+    /**
+     * Opens the cache for the given inputs, or returns {@code null} if it can not be used.
+     */
+    static @Nullable TransformCache open(Path cacheDir, String inputs) {
+        try {
+            Files.createDirectories(cacheDir);
+            Path file = cacheDir.resolve(MixinInputs.fingerprint(inputs) + SUFFIX);
+            deleteStale(cacheDir, file);
+
+            FileChannel channel = FileChannel.open(file, CREATE, READ, WRITE);
+            try {
+                Map<String, Record> records = new HashMap<>();
+                ByteBuffer mapping = null;
+                if (channel.size() < 8) {
+                    channel.truncate(0);
+                    channel.write(ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).flip(), 0);
+                } else {
+                    mapping = channel.map(READ_ONLY, 0, channel.size());
+                    if (mapping.getInt(0) != MAGIC || mapping.getInt(4) != VERSION) {
+                        throw new IOException("Unsupported transform cache " + file);
+                    }
+                    int end = scan(mapping, records);
+                    if (end < channel.size()) {
+                        // Left over from a launcher that was killed while writing
+                        channel.truncate(end);
+                    }
+                }
+                channel.position(channel.size());
+                logger.debug("Transform cache has {} classes", records.size());
+                return new TransformCache(channel, mapping, records);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Failed to open the transform cache, transforming every mixin target", e);
+            return null;
+        }
+    }
+
+    private static int scan(ByteBuffer mapping, Map<String, Record> records) {
+        int position = 8;
+        while (position + 2 <= mapping.limit()) {
+            int nameLength = Short.toUnsignedInt(mapping.getShort(position));
+            int lengthAt = position + 2 + nameLength + HASH_LENGTH;
+            if (lengthAt + 4 > mapping.limit()) {
+                break;
+            }
+            int length = mapping.getInt(lengthAt);
+            int end = lengthAt + 4 + length;
+            if (length < 0 || end > mapping.limit()) {
+                break;
+            }
+
+            byte[] name = new byte[nameLength];
+            mapping.get(position + 2, name);
+            byte[] hash = new byte[HASH_LENGTH];
+            mapping.get(position + 2 + nameLength, hash);
+            records.put(new String(name, StandardCharsets.UTF_8), new Record(hash, lengthAt + 4, length));
+            position = end;
+        }
+        return position;
+    }
+
+    boolean isEmpty() {
+        return records.isEmpty();
+    }
+
+    boolean contains(String name) {
+        return records.containsKey(name);
+    }
+
+    /**
+     * @return the cached bytes of the class, or {@code null} if it is not cached for these original bytes
+     */
+    byte @Nullable [] get(String name, byte[] originalHash) {
+        Record record = records.get(name);
+        if (record == null || mapping == null || !Arrays.equals(record.originalHash, originalHash)) {
+            return null;
+        }
+        byte[] bytes = new byte[record.length];
+        mapping.get(record.offset, bytes);
+        return bytes;
+    }
+
+    void put(String name, byte[] originalHash, byte[] transformed) {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(2 + nameBytes.length + HASH_LENGTH + 4 + transformed.length);
+        buffer.putShort((short) nameBytes.length).put(nameBytes).put(originalHash).putInt(transformed.length).put(transformed).flip();
+        try {
+            // One write per record, a killed launcher leaves at most one truncated record at the end
+            synchronized (channel) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        } catch (IOException e) {
+            logger.debug("Failed to cache transformed class " + name, e);
+        }
+    }
+
+    static byte[] hash(byte[] original) {
+        return Util.newSha256Digest().digest(original);
+    }
+
+    private static void deleteStale(Path cacheDir, Path current) {
+        try (Stream<Path> files = Files.list(cacheDir)) {
+            files
+                .filter(file -> file.getFileName().toString().endsWith(SUFFIX) && !file.equals(current))
+                .forEach(file -> {
+                    try {
+                        Files.deleteIfExists(file);
+                    } catch (IOException e) {
+                        logger.debug("Failed to delete stale transform cache " + file, e);
+                    }
+                });
+        } catch (IOException e) {
+            logger.debug("Failed to list transform caches", e);
+        }
+    }
+
+    private record Record(byte[] originalHash, int offset, int length) {
+    }
+}
@@ -0,0 +1,180 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Applies bsdiff patches ({@link PatchFormat}) without holding the original, the patch or the output in memory.
+ * <p>
+ * The original file is read from a (memory-mapped) buffer, the control, diff and extra blocks are decompressed
+ * as streams, and the output is written as soon as each block is produced, so peak heap usage is a couple of
+ * fixed-size buffers regardless of the size of the patched file.
+ * <p>
+ * bzip2 blocks inside a section are bit-aligned and chained, so decompression is parallelised per section, not per
+ * bzip2 block.
+ */
+final class BsPatch {
+    private static final int HEADER_SIZE = 32;
+    private static final int CONTROL_SIZE = 24;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int PREFETCH_CHUNKS = 16;
+
+    private BsPatch() {
+    }
+
+    /**
+     * Opens a fresh stream over the whole patch file, the patch is read once for each block.
+     */
+    @FunctionalInterface
+    interface PatchSource {
+        InputStream open() throws IOException;
+    }
+
+    static void patch(final ByteBuffer original, final PatchSource patch, final OutputStream out) throws IOException {
+        final byte[] header;
+        try (final InputStream in = patch.open()) {
+            header = in.readNBytes(HEADER_SIZE);
+        }
+        final PatchFormat format = header.length < HEADER_SIZE ? null : PatchFormat.fromMagic(header);
+        if (format == null) {
+            throw new IOException("Invalid patch header: unknown magic number");
+        }
+        if (!format.isAvailable()) {
+            throw new IOException("Patch format " + format.id() + " is not available, is zstd-jni on the classpath?");
+        }
+
+        final long controlLength = readOffset(header, 8);
+        final long diffLength = readOffset(header, 16);
+        final long outputLength = readOffset(header, 24);
+        if (controlLength < 0 || diffLength < 0 || outputLength < 0) {
+            throw new IOException("Invalid patch header: negative block length");
+        }
+
+        try (
+            final InputStream control = decode(openBlock(patch, format, HEADER_SIZE), "control");
+            final InputStream diff = decode(openBlock(patch, format, HEADER_SIZE + controlLength), "diff");
+            final InputStream extra = decode(openBlock(patch, format, HEADER_SIZE + controlLength + diffLength), "extra")
+        ) {
+            patch(original, control, diff, extra, outputLength, out);
+        }
+    }
+
+    static void patch(
+        final ByteBuffer original,
+        final InputStream control,
+        final InputStream diff,
+        final InputStream extra,
+        final long outputLength,
+        final OutputStream out
+    ) throws IOException {
+        final int originalLength = original.limit();
+        final byte[] controlBytes = new byte[CONTROL_SIZE];
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        final byte[] originalBuffer = new byte[BUFFER_SIZE];
+
+        long newPos = 0;
+        long oldPos = 0;
+        while (newPos < outputLength) {
+            readFully(control, controlBytes, CONTROL_SIZE);
+            final long diffLength = readOffset(controlBytes, 0);
+            final long extraLength = readOffset(controlBytes, 8);
+            final long seekLength = readOffset(controlBytes, 16);
+            if (diffLength < 0 || extraLength < 0 || newPos + diffLength + extraLength > outputLength) {
+                throw new IOException("Corrupt patch: invalid control block at output offset " + newPos);
+            }
+
+            // Add the diff block onto the original bytes
+            long remaining = diffLength;
+            while (remaining > 0) {
+                final int length = (int) Math.min(BUFFER_SIZE, remaining);
+                readFully(diff, buffer, length);
+                if (oldPos >= 0 && oldPos + length <= originalLength) {
+                    original.get((int) oldPos, originalBuffer, 0, length);
+                    for (int i = 0; i < length; i++) {
+                        buffer[i] += originalBuffer[i];
+                    }
+                } else {
+                    for (int i = 0; i < length; i++) {
+                        final long pos = oldPos + i;
+                        if (pos >= 0 && pos < originalLength) {
+                            buffer[i] += original.get((int) pos);
+                        }
+                    }
+                }
+                out.write(buffer, 0, length);
+                oldPos += length;
+                remaining -= length;
+            }
+            newPos += diffLength;
+
+            // Copy the extra block as it is
+            remaining = extraLength;
+            while (remaining > 0) {
+                final int length = (int) Math.min(BUFFER_SIZE, remaining);
+                readFully(extra, buffer, length);
+                out.write(buffer, 0, length);
+                remaining -= length;
+            }
+            newPos += extraLength;
+            oldPos += seekLength;
+        }
+    }
+
+    private static InputStream openBlock(final PatchSource patch, final PatchFormat format, final long offset) throws IOException {
+        final InputStream in = patch.open();
+        try {
+            in.skipNBytes(offset);
+            final InputStream buffered = new BufferedInputStream(in, BUFFER_SIZE);
+            if (format == PatchFormat.BSDIFF40) {
+                // Plain bsdiff patches may use any compression, let commons-compress detect it like jbsdiff does
+                return new CompressorStreamFactory().createCompressorInputStream(buffered);
+            }
+            return new CompressorStreamFactory().createCompressorInputStream(format.compressor(), buffered);
+        } catch (final CompressorException e) {
+            in.close();
+            throw new IOException("Failed to open patch block at offset " + offset, e);
+        } catch (final IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The three blocks are compressed independently, so they are decompressed on their own threads while the patch
+     * is applied. Single-threaded setups ({@code -Dleavesclip.setup-threads=1}) decompress them inline.
+     */
+    private static InputStream decode(final InputStream block, final String name) {
+        if (SetupExecutor.parallelism <= 1) {
+            return block;
+        }
+        return new PrefetchInputStream(block, "Leavesclip Patch Decoder (" + name + ")", BUFFER_SIZE, PREFETCH_CHUNKS);
+    }
+
+    private static void readFully(final InputStream in, final byte[] buffer, final int length) throws IOException {
+        final int read = in.readNBytes(buffer, 0, length);
+        if (read < length) {
+            throw new EOFException("Corrupt patch; bytes expected = " + length + " bytes read = " + read);
+        }
+    }
+
+    /**
+     * Reads a bsdiff offset: 8 bytes little-endian magnitude, with the sign in the highest bit.
+     */
+    static long readOffset(final byte[] bytes, final int index) {
+        long value = bytes[index + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (bytes[index + i] & 0xFF);
+        }
+        if ((bytes[index + 7] & 0x80) != 0) {
+            value = -value;
+        }
+        return value;
+    }
+}
@@ -2,34 +2,93 @@ package org.leavesmc.leavesclip.patch;
 
 import org.leavesmc.leavesclip.Leavesclip;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.net.MalformedURLException;
 import java.net.URI;
-import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
-import static java.nio.file.StandardOpenOption.*;
-
-public record DownloadContext(byte[] hash, URL url, String fileName) {
+/**
+ * The original server jar and the sources it can be fetched from.
+ * <p>
+ * Sources are tried in order, moving on to the next one whenever a source fails or serves a file with the wrong hash:
+ * <ol>
+ *     <li>{@code <dir>/<file name>} for {@code -Dleavesclip.download-seed=<dir>}, e.g. a pre-seeded image directory</li>
+ *     <li>the mirrors listed in {@code -Dleavesclip.download-mirrors}, separated by commas</li>
+ *     <li>the mirrors listed in {@code -Dleavesclip.download-mirrors-file}, one per line</li>
+ *     <li>the URLs from {@code META-INF/download-context}, separated by spaces</li>
+ * </ol>
+ * A mirror ending with {@code /} is a directory the file name is appended to. {@code file:} URLs are accepted.
+ */
+public record DownloadContext(byte[] hash, List<URI> urls, String fileName) {
     public static DownloadContext parseLine(final String line) {
         if (line == null || line.isBlank()) {
             return null;
         }
 
-        final String[] parts = line.split("\t");
+        final String[] parts = line.strip().split("\t");
         if (parts.length != 3) {
             throw new IllegalStateException("Invalid download-context line: " + line);
         }
 
+        final List<URI> urls = new ArrayList<>();
+        for (final String url : parts[1].trim().split(" +")) {
+            urls.add(parseUrl(url, parts[2], "download-context"));
+        }
+        return new DownloadContext(Util.fromHex(parts[0]), List.copyOf(urls), parts[2]);
+    }
+
+    private static URI parseUrl(final String url, final String fileName, final String origin) {
         try {
-            return new DownloadContext(Util.fromHex(parts[0]), URI.create(parts[1]).toURL(), parts[2]);
-        } catch (final MalformedURLException e) {
-            throw new IllegalStateException("Unable to parse URL in download-context", e);
+            final URI uri = URI.create(url.endsWith("/") ? url + fileName : url);
+            // Fail early on URLs the downloader could not open
+            uri.toURL();
+            return uri;
+        } catch (final IllegalArgumentException | IOException e) {
+            throw new IllegalStateException("Unable to parse URL " + url + " in " + origin, e);
+        }
+    }
+
+    /**
+     * Lists the sources to try, in order, see the class documentation.
+     */
+    public List<URI> sources() throws IOException {
+        final List<URI> sources = new ArrayList<>();
+
+        final String seed = System.getProperty("leavesclip.download-seed");
+        if (seed != null && !seed.isBlank()) {
+            final Path seedFile = Path.of(seed).resolve(this.fileName);
+            if (Files.isRegularFile(seedFile)) {
+                sources.add(seedFile.toAbsolutePath().toUri());
+            }
+        }
+
+        final String mirrors = System.getProperty("leavesclip.download-mirrors");
+        if (mirrors != null) {
+            for (final String mirror : mirrors.split(",")) {
+                if (!mirror.isBlank()) {
+                    sources.add(parseUrl(mirror.trim(), this.fileName, "leavesclip.download-mirrors"));
+                }
+            }
+        }
+
+        final String mirrorsFile = System.getProperty("leavesclip.download-mirrors-file");
+        if (mirrorsFile != null && !mirrorsFile.isBlank()) {
+            try (final BufferedReader reader = Files.newBufferedReader(Path.of(mirrorsFile))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#")) {
+                        sources.add(parseUrl(line, this.fileName, mirrorsFile));
+                    }
+                }
+            }
         }
+
+        sources.addAll(this.urls);
+        return sources;
     }
 
     public Path getOutputFile(final Path outputDir) {
@@ -43,25 +102,43 @@ public record DownloadContext(byte[] hash, URL url, String fileName) {
             return;
         }
 
-        if (!Files.isDirectory(outputFile.getParent())) {
-            Files.createDirectories(outputFile.getParent());
+        try (final OutputLock lock = OutputLock.acquire(outputFile)) {
+            if (!lock.isDone(outputFile, this.hash)) {
+                if (!SharedCache.fetch(this.hash, outputFile)) {
+                    this.downloadTo(outputFile);
+                    SharedCache.publish(this.hash, outputFile);
+                }
+                lock.markDone(outputFile, this.hash);
+            }
         }
-        Files.deleteIfExists(outputFile);
-
-        Leavesclip.logger.info("Downloading {}", this.fileName);
+    }
 
-        try (
-            final ReadableByteChannel source = Channels.newChannel(this.url.openStream());
-            final FileChannel fileChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            fileChannel.transferFrom(source, 0, Long.MAX_VALUE);
-        } catch (final IOException e) {
-            Leavesclip.logger.error(e, "Failed to download {}", this.fileName);
-            System.exit(1);
+    private void downloadTo(final Path outputFile) throws IOException {
+        final List<URI> sources = this.sources();
+        final Downloader downloader = Downloader.create();
+        IOException failure = null;
+        for (final URI source : sources) {
+            Leavesclip.logger.info("Downloading {} from {}", this.fileName, source);
+            try {
+                if (downloader.download(source, outputFile, this.hash)) {
+                    return;
+                }
+                Leavesclip.logger.warn("Hash check failed for {} from {}", this.fileName, source);
+            } catch (final IOException e) {
+                // The partial download is kept, the next source or the next start resumes it
+                Leavesclip.logger.warn(e, "Failed to download {} from {}", this.fileName, source);
+                if (failure == null) {
+                    failure = new IOException("Failed to download " + this.fileName + " from any of " + sources);
+                }
+                failure.addSuppressed(e);
+            }
         }
 
-        if (!Util.isFileValid(outputFile, this.hash)) {
-            throw new IllegalStateException("Hash check failed for downloaded file " + this.fileName);
+        if (failure != null) {
+            Leavesclip.logger.error(failure, "Failed to download {}", this.fileName);
+            System.exit(1);
+            return;
         }
+        throw new IllegalStateException("Hash check failed for downloaded file " + this.fileName);
     }
 }
@@ -0,0 +1,410 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.leavesmc.leavesclip.Leavesclip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Downloads a file over HTTP into {@code <file>.part} and moves it into place once its hash matches.
+ * <p>
+ * When the server supports range requests, the file is fetched as fixed-size chunks over several connections
+ * ({@code -Dleavesclip.download-connections}, 4 by default). Completed chunks are listed in {@code <file>.part.state},
+ * so an interrupted download resumes where it stopped instead of starting over. The hash is computed while the
+ * download is running: the completed prefix of the file is read back, usually from the page cache, by whichever worker
+ * finishes a chunk while no other worker is hashing, so only the chunks finished last are left to hash at the end.
+ * <p>
+ * Servers without range support, and non-HTTP URLs, are read as a single stream.
+ */
+final class Downloader {
+    private static final int DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int ATTEMPTS = 3;
+    private static final long PROGRESS_INTERVAL_SECONDS = 5;
+
+    private final HttpClient client;
+    private final int connections;
+    private final int chunkSize;
+
+    Downloader(final HttpClient client, final int connections, final int chunkSize) {
+        this.client = client;
+        this.connections = Math.max(1, connections);
+        this.chunkSize = chunkSize;
+    }
+
+    static Downloader create() {
+        final HttpClient client = HttpClient.newBuilder()
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .connectTimeout(Duration.ofSeconds(30))
+            .build();
+        return new Downloader(client, Integer.getInteger("leavesclip.download-connections", 4), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Downloads {@code uri} to {@code outputFile}. A partial download left by an earlier run is resumed.
+     *
+     * @return whether the downloaded file matches the given hash, it is only moved into place if it does
+     */
+    boolean download(final URI uri, final Path outputFile, final byte[] hash) throws IOException {
+        final String scheme = uri.getScheme();
+        if (!"http".equalsIgnoreCase(scheme) && !"https".equalsIgnoreCase(scheme)) {
+            return Util.copyAndVerify(uri.toURL().openStream(), outputFile, hash);
+        }
+
+        final Path partFile = outputFile.resolveSibling(outputFile.getFileName() + ".part");
+        final Path stateFile = outputFile.resolveSibling(outputFile.getFileName() + ".part.state");
+        final long startTime = System.nanoTime();
+
+        final Target target = this.probe(uri);
+        final Transfer transfer;
+        if (target.length() > 0 && target.acceptsRanges()) {
+            transfer = new Transfer(target, partFile, stateFile, this.chunkSize);
+            this.fetchChunks(transfer);
+        } else {
+            Files.deleteIfExists(stateFile);
+            transfer = new Transfer(target, partFile, null, 0);
+            this.fetchStream(transfer);
+        }
+
+        logThroughput(outputFile, transfer, startTime);
+
+        if (!Arrays.equals(hash, transfer.digest())) {
+            Files.deleteIfExists(partFile);
+            Files.deleteIfExists(stateFile);
+            return false;
+        }
+        Util.moveAtomically(partFile, outputFile);
+        Files.deleteIfExists(stateFile);
+        VerificationCache.markVerified(outputFile, VerificationCache.stamp(outputFile, hash));
+        return true;
+    }
+
+    private Target probe(final URI uri) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(uri)
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+        final HttpResponse<Void> response;
+        try {
+            response = this.client.send(request, HttpResponse.BodyHandlers.discarding());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while connecting to " + uri, e);
+        }
+
+        if (response.statusCode() != 200) {
+            // Some servers reject HEAD, a plain GET still works
+            return new Target(response.uri(), -1, false, "");
+        }
+        final HttpHeaders headers = response.headers();
+        final long length = headers.firstValueAsLong("Content-Length").orElse(-1);
+        final boolean acceptsRanges = headers.firstValue("Accept-Ranges").map("bytes"::equalsIgnoreCase).orElse(false);
+        final String validator = headers.firstValue("ETag")
+            .or(() -> headers.firstValue("Last-Modified"))
+            .orElse("")
+            .replace('\t', ' ');
+        return new Target(response.uri(), length, acceptsRanges, validator);
+    }
+
+    private void fetchStream(final Transfer transfer) throws IOException {
+        final HttpRequest request = HttpRequest.newBuilder(transfer.target.uri()).GET().build();
+        try (final FileChannel channel = FileChannel.open(transfer.partFile, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            try (final InputStream in = this.open(request, 200)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    transfer.digest.update(buffer, 0, read);
+                    channel.write(ByteBuffer.wrap(buffer, 0, read));
+                    transfer.transferred.addAndGet(read);
+                }
+            }
+        }
+    }
+
+    private void fetchChunks(final Transfer transfer) throws IOException {
+        final int chunkCount = transfer.chunkCount();
+        final BitSet completed = transfer.readState();
+        if (completed.cardinality() > 0) {
+            transfer.resumed = (long) completed.cardinality() * transfer.chunkSize;
+            Leavesclip.logger.info(
+                "Resuming download of {} ({} of {} chunks done)",
+                transfer.partFile.getFileName(), completed.cardinality(), chunkCount
+            );
+        }
+
+        final AtomicInteger counter = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(this.connections, runnable -> {
+            final Thread thread = new Thread(runnable, "Leavesclip Download Worker #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (final FileChannel channel = FileChannel.open(transfer.partFile, CREATE, READ, WRITE)) {
+            transfer.channel = channel;
+            transfer.completed = completed;
+
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int chunk = completed.nextClearBit(0); chunk < chunkCount; chunk = completed.nextClearBit(chunk + 1)) {
+                final int index = chunk;
+                futures.add(executor.submit(() -> {
+                    this.fetchChunk(transfer, index);
+                    return null;
+                }));
+            }
+            this.await(transfer, futures);
+            transfer.finishHashing();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void fetchChunk(final Transfer transfer, final int chunk) throws IOException {
+        final long start = (long) chunk * transfer.chunkSize;
+        final long end = Math.min(start + transfer.chunkSize, transfer.target.length()) - 1;
+        final HttpRequest request = HttpRequest.newBuilder(transfer.target.uri())
+            .header("Range", "bytes=" + start + "-" + end)
+            .GET()
+            .build();
+
+        IOException failure = null;
+        for (int attempt = 1; attempt <= ATTEMPTS; attempt++) {
+            long position = start;
+            try (final InputStream in = this.open(request, 206)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (position <= end
+                    && (read = in.readNBytes(buffer, 0, (int) Math.min(BUFFER_SIZE, end + 1 - position))) > 0) {
+                    final ByteBuffer data = ByteBuffer.wrap(buffer, 0, read);
+                    while (data.hasRemaining()) {
+                        position += transfer.channel.write(data, position);
+                    }
+                    transfer.transferred.addAndGet(read);
+                }
+                if (position != end + 1) {
+                    throw new IOException("Connection closed after " + (position - start) + " bytes of chunk " + chunk);
+                }
+                transfer.complete(chunk);
+                return;
+            } catch (final IOException e) {
+                transfer.transferred.addAndGet(start - position);
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+                Leavesclip.logger.debug("Attempt " + attempt + " of chunk " + chunk + " failed", e);
+            }
+        }
+        throw failure;
+    }
+
+    private InputStream open(final HttpRequest request, final int expectedStatus) throws IOException {
+        final HttpResponse<InputStream> response;
+        try {
+            response = this.client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while downloading " + request.uri(), e);
+        }
+        if (response.statusCode() != expectedStatus) {
+            response.body().close();
+            throw new IOException("Unexpected status " + response.statusCode() + " for " + request.uri());
+        }
+        return response.body();
+    }
+
+    private void await(final Transfer transfer, final List<Future<?>> futures) throws IOException {
+        long lastReport = System.nanoTime();
+        for (final Future<?> future : futures) {
+            while (true) {
+                try {
+                    future.get(PROGRESS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+                    break;
+                } catch (final TimeoutException e) {
+                    // Still running
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while downloading " + transfer.target.uri(), e);
+                } catch (final ExecutionException e) {
+                    if (e.getCause() instanceof IOException ioException) {
+                        throw ioException;
+                    }
+                    throw Util.sneakyThrow(e.getCause());
+                }
+
+                final long now = System.nanoTime();
+                if (now - lastReport >= TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_SECONDS)) {
+                    lastReport = now;
+                    Leavesclip.logger.info(
+                        "Downloaded {} / {} MiB",
+                        (transfer.resumed + transfer.transferred.get()) >> 20,
+                        transfer.target.length() >> 20
+                    );
+                }
+            }
+        }
+    }
+
+    private static void logThroughput(final Path outputFile, final Transfer transfer, final long startTime) {
+        final double seconds = Math.max(1, System.nanoTime() - startTime) / 1e9;
+        final double mebibytes = transfer.transferred.get() / (1024.0 * 1024.0);
+        Leavesclip.logger.info(
+            "Downloaded {} ({} MiB in {} s, {} MiB/s)",
+            outputFile.getFileName(),
+            String.format("%.1f", mebibytes),
+            String.format("%.1f", seconds),
+            String.format("%.1f", mebibytes / seconds)
+        );
+    }
+
+    private record Target(URI uri, long length, boolean acceptsRanges, String validator) {
+    }
+
+    private static final class Transfer {
+        private final Target target;
+        private final Path partFile;
+        private final Path stateFile;
+        private final int chunkSize;
+        private final MessageDigest digest = Util.newSha256Digest();
+        private final AtomicLong transferred = new AtomicLong();
+        private FileChannel channel;
+        private BitSet completed;
+        private final ReentrantLock hashLock = new ReentrantLock();
+        private int hashedChunks = 0;
+        private long resumed = 0;
+
+        private Transfer(final Target target, final Path partFile, final Path stateFile, final int chunkSize) {
+            this.target = target;
+            this.partFile = partFile;
+            this.stateFile = stateFile;
+            this.chunkSize = chunkSize;
+        }
+
+        private int chunkCount() {
+            return (int) ((this.target.length() + this.chunkSize - 1) / this.chunkSize);
+        }
+
+        private String header() {
+            return this.target.length() + "\t" + this.chunkSize + "\t" + this.target.validator();
+        }
+
+        /**
+         * Reads the chunks completed by an earlier run. The state only counts if it was written for the same file,
+         * otherwise the download starts over.
+         */
+        private BitSet readState() throws IOException {
+            final BitSet completed = new BitSet();
+            if (Files.exists(this.stateFile) && Files.exists(this.partFile)) {
+                try (final BufferedReader reader = Files.newBufferedReader(this.stateFile)) {
+                    if (this.header().equals(reader.readLine())) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            final int chunk = Integer.parseInt(line);
+                            if (chunk >= 0 && chunk < this.chunkCount()) {
+                                completed.set(chunk);
+                            }
+                        }
+                        return completed;
+                    }
+                } catch (final NumberFormatException e) {
+                    // Cut short while being written, start over
+                    completed.clear();
+                }
+            }
+
+            Files.deleteIfExists(this.partFile);
+            try (final BufferedWriter writer = Files.newBufferedWriter(this.stateFile)) {
+                writer.write(this.header());
+                writer.newLine();
+            }
+            return completed;
+        }
+
+        /**
+         * Records a finished chunk and hashes every chunk that is now part of the completed prefix, unless another
+         * worker is already hashing. The final hash check catches a state file that got ahead of the data, e.g. after
+         * a power loss.
+         */
+        private void complete(final int chunk) throws IOException {
+            synchronized (this) {
+                this.completed.set(chunk);
+                Files.writeString(this.stateFile, chunk + System.lineSeparator(), APPEND);
+            }
+            // Workers keep downloading instead of queueing up to hash, chunks skipped here are picked up later
+            if (this.hashLock.tryLock()) {
+                try {
+                    this.hashCompletedPrefix();
+                } finally {
+                    this.hashLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Hashes whatever prefix is left once every chunk is done.
+         */
+        private void finishHashing() throws IOException {
+            this.hashLock.lock();
+            try {
+                this.hashCompletedPrefix();
+                if (this.hashedChunks != this.chunkCount()) {
+                    throw new IOException("Download of " + this.partFile + " is missing chunk " + this.hashedChunks);
+                }
+            } finally {
+                this.hashLock.unlock();
+            }
+        }
+
+        private synchronized boolean isCompleted(final int chunk) {
+            return this.completed.get(chunk);
+        }
+
+        /**
+         * Reads the completed prefix back from the part file, outside the monitor so finishing workers do not wait.
+         * Only called with {@link #hashLock} held.
+         */
+        private void hashCompletedPrefix() throws IOException {
+            final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (this.hashedChunks < this.chunkCount() && this.isCompleted(this.hashedChunks)) {
+                long position = (long) this.hashedChunks * this.chunkSize;
+                final long end = Math.min(position + this.chunkSize, this.target.length());
+                while (position < end) {
+                    buffer.clear().limit((int) Math.min(BUFFER_SIZE, end - position));
+                    final int read = this.channel.read(buffer, position);
+                    if (read < 0) {
+                        throw new IOException("Partial download is shorter than expected: " + this.partFile);
+                    }
+                    buffer.flip();
+                    this.digest.update(buffer);
+                    position += read;
+                }
+                this.hashedChunks++;
+            }
+        }
+
+        private byte[] digest() {
+            return this.digest.digest();
+        }
+    }
+}
@@ -1,20 +1,17 @@
 package org.leavesmc.leavesclip.patch;
 
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.loader.nested.NestedJar;
 import org.leavesmc.leavesclip.update.AutoUpdate;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Map;
-
-import static java.nio.file.StandardOpenOption.*;
 
 public record FileEntry(byte[] hash, String id, String path) {
 
@@ -47,31 +44,98 @@ public record FileEntry(byte[] hash, String id, String path) {
         }
     }
 
-    public void extractFile(
-        final Map<String, URL> urls,
+    /**
+     * Extracts this file into the output directory, unless a valid copy is already there.
+     *
+     * @param bundleJar the jar our files are read from, or {@code null} if it is not a jar file
+     * @param nested    whether to serve this file from inside {@code bundleJar} instead of extracting it, where possible
+     * @return the URL of the extracted file, or {@code null} if this file is created by one of the patches instead
+     */
+    public @Nullable URL extractFile(
         final PatchEntry[] patches,
         final String targetName,
-        final Path originalRootDir,
+        final OriginalJar originalJar,
         final String baseDir,
-        final Path outputDir
+        final Path outputDir,
+        final @Nullable Path bundleJar,
+        final boolean nested
     ) throws IOException {
         for (final PatchEntry patch : patches) {
             if (patch.location().equals(targetName) && patch.outputPath().equals(this.path)) {
                 // This file will be created from a patch
-                return;
+                return null;
+            }
+        }
+
+        if (nested && bundleJar != null) {
+            final URL nestedUrl = this.nestedUrl(bundleJar, baseDir);
+            if (nestedUrl != null) {
+                return nestedUrl;
             }
         }
 
         final Path outputFile = outputDir.resolve(this.path);
         if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.hash)) {
-            urls.put(this.path, outputFile.toUri().toURL());
-            return;
+            return outputFile.toUri().toURL();
+        }
+
+        try (final OutputLock lock = OutputLock.acquire(outputFile)) {
+            if (!lock.isDone(outputFile, this.hash)) {
+                if (!SharedCache.fetch(this.hash, outputFile)) {
+                    this.extract(originalJar, baseDir, bundleJar, outputFile);
+                    SharedCache.publish(this.hash, outputFile);
+                }
+                lock.markDone(outputFile, this.hash);
+            }
         }
 
+        return outputFile.toUri().toURL();
+    }
+
+    private @Nullable URL nestedUrl(final Path bundleJar, final String baseDir) {
         final String filePath = Util.endingSlash(baseDir) + this.path;
+        final NestedJar jar = NestedJar.tryOpen(bundleJar, entryName(filePath));
+        if (jar == null) {
+            return null;
+        }
+
+        // Take the stamp before reading, like for extracted files, the bundle jar only changes as a whole
+        final VerificationCache.Stamp stamp = VerificationCache.stamp(bundleJar, this.hash);
+        if (!VerificationCache.isVerified(bundleJar, entryName(filePath), stamp)) {
+            final MessageDigest digest = Util.newSha256Digest();
+            digest.update(jar.content());
+            if (!Arrays.equals(digest.digest(), this.hash)) {
+                throw new IllegalStateException("Hash check failed for nested file " + filePath);
+            }
+            VerificationCache.markVerified(bundleJar, entryName(filePath), stamp);
+        }
+        return jar.url();
+    }
+
+    private static String entryName(final String filePath) {
+        return filePath.startsWith("/") ? filePath.substring(1) : filePath;
+    }
+
+    private void extract(
+        final OriginalJar originalJar,
+        final String baseDir,
+        final @Nullable Path bundleJar,
+        final Path outputFile
+    ) throws IOException {
+        final String filePath = Util.endingSlash(baseDir) + this.path;
+        final NestedJar.Range stored = bundleJar == null ? null : NestedJar.findStored(bundleJar, entryName(filePath));
+        if (stored != null) {
+            // Stored entries are copied straight out of our jar by the kernel
+            if (!Util.copyAndVerify(bundleJar, stored.offset(), stored.length(), outputFile, this.hash)) {
+                throw new IllegalStateException("Hash check failed for extract filed " + outputFile);
+            }
+            return;
+        }
+
         InputStream fileStream = AutoUpdate.getResourceAsStreamFromTargetJar(filePath);
         if (fileStream == null) {
-            // This file is not in our jar, but may be in the original
+            // This file is not in our jar, but may be in the original, which may still be downloading
+            final Path originalRootDir = originalJar.rootDir();
             if (originalRootDir == null) {
                 // no original jar was provided (we are not running in patcher mode)
                 // This is an invalid situation
@@ -86,23 +150,8 @@ public record FileEntry(byte[] hash, String id, String path) {
             fileStream = Files.newInputStream(originalFile);
         }
 
-        if (!Files.isDirectory(outputFile.getParent())) {
-            Files.createDirectories(outputFile.getParent());
-        }
-        Files.deleteIfExists(outputFile);
-
-        try (
-            final InputStream stream = fileStream;
-            final ReadableByteChannel inputChannel = Channels.newChannel(stream);
-            final FileChannel outputChannel = FileChannel.open(outputFile, CREATE, WRITE, TRUNCATE_EXISTING)
-        ) {
-            outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
-        }
-
-        if (!Util.isFileValid(outputFile, this.hash)) {
+        if (!Util.copyAndVerify(fileStream, outputFile, this.hash)) {
             throw new IllegalStateException("Hash check failed for extract filed " + outputFile);
         }
-
-        urls.put(this.path, outputFile.toUri().toURL());
     }
 }
@@ -0,0 +1,155 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+import org.leavesmc.leavesclip.loader.nested.NestedJar;
+
+import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Result of a successful setup, stored in {@code <repo>/cache/launch.descriptor} so that warm starts can skip it.
+ * <p>
+ * The descriptor holds the ordered classpath and the main class, together with the stamps (size, modification time and
+ * file key) of the bundle jars and of every classpath file. On the next start it is accepted only if all stamps still
+ * match, which takes one {@code stat} per file; the launcher then skips reading the lists, the download and the
+ * verification entirely. Anything unexpected falls back to the full setup, which writes a new descriptor.
+ * <p>
+ * Jars served from inside a bundle jar ({@code nested:} URLs) have no stamp of their own, they are covered by the
+ * stamp of that bundle jar. It is not used with {@code -Dleavesclip.paranoid-verify=true}.
+ */
+public record LaunchDescriptor(URL[] classpath, @Nullable String mainClass) {
+    private static final String FILE_NAME = "launch.descriptor";
+    private static final int MAGIC = 0x4C434C44;
+    private static final int VERSION = 2;
+    private static final byte[] NO_HASH = new byte[0];
+
+    private static Path file(final Path repoDir) {
+        return repoDir.resolve("cache").resolve(FILE_NAME);
+    }
+
+    /**
+     * Reads the descriptor, if it exists and still describes the given bundle jars and repo.
+     *
+     * @param nested whether bundled jars are served in place instead of being extracted
+     */
+    public static @Nullable LaunchDescriptor read(final Path repoDir, final List<Path> bundles, final boolean nested) {
+        final Path file = file(repoDir);
+        if (VerificationCache.isParanoid() || Files.notExists(file)) {
+            return null;
+        }
+
+        try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                return null;
+            }
+            if (!in.readUTF().equals(repoDir.toAbsolutePath().normalize().toString()) || in.readBoolean() != nested) {
+                return null;
+            }
+
+            final int bundleCount = in.readInt();
+            if (bundleCount != bundles.size()) {
+                return null;
+            }
+            for (final Path bundle : bundles) {
+                if (!in.readUTF().equals(bundle.toString()) || !readStamp(in, bundle)) {
+                    return null;
+                }
+            }
+
+            final String mainClass = in.readBoolean() ? in.readUTF() : null;
+            final URL[] classpath = new URL[in.readInt()];
+            for (int i = 0; i < classpath.length; i++) {
+                if (in.readBoolean()) {
+                    classpath[i] = NestedJar.open(URI.create(in.readUTF()).toURL()).url();
+                    continue;
+                }
+                final Path path = Path.of(in.readUTF());
+                if (!readStamp(in, path)) {
+                    return null;
+                }
+                classpath[i] = path.toUri().toURL();
+            }
+            return new LaunchDescriptor(classpath, mainClass);
+        } catch (final IOException | RuntimeException e) {
+            Leavesclip.logger.debug("Ignoring unreadable launch descriptor", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores this descriptor. Failing to write it only costs the next start a full setup.
+     */
+    public void write(final Path repoDir, final List<Path> bundles, final boolean nested) {
+        if (VerificationCache.isParanoid()) {
+            return;
+        }
+
+        final Path file = file(repoDir);
+        Path tempFile = null;
+        try {
+            Files.createDirectories(file.getParent());
+            tempFile = Util.tempSibling(file);
+            try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(repoDir.toAbsolutePath().normalize().toString());
+                out.writeBoolean(nested);
+
+                out.writeInt(bundles.size());
+                for (final Path bundle : bundles) {
+                    out.writeUTF(bundle.toString());
+                    writeStamp(out, bundle);
+                }
+
+                out.writeBoolean(this.mainClass != null);
+                if (this.mainClass != null) {
+                    out.writeUTF(this.mainClass);
+                }
+                out.writeInt(this.classpath.length);
+                for (final URL url : this.classpath) {
+                    out.writeBoolean("nested".equals(url.getProtocol()));
+                    if ("nested".equals(url.getProtocol())) {
+                        out.writeUTF(url.toString());
+                        continue;
+                    }
+                    final Path path = Path.of(url.toURI()).toAbsolutePath();
+                    out.writeUTF(path.toString());
+                    writeStamp(out, path);
+                }
+            }
+            Util.moveAtomically(tempFile, file);
+        } catch (final IOException | URISyntaxException | RuntimeException e) {
+            Leavesclip.logger.warn("Failed to write the launch descriptor", e);
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (final IOException ignored) {
+                    // Left over temp files are never read
+                }
+            }
+        }
+    }
+
+    private static void writeStamp(final DataOutputStream out, final Path file) throws IOException {
+        final VerificationCache.Stamp stamp = VerificationCache.stamp(file, NO_HASH);
+        if (stamp == null) {
+            throw new IOException("Can not stamp " + file);
+        }
+        out.writeLong(stamp.size());
+        out.writeLong(stamp.modifiedTime());
+        out.writeUTF(stamp.fileKey());
+    }
+
+    private static boolean readStamp(final DataInputStream in, final Path file) throws IOException {
+        final VerificationCache.Stamp recorded = new VerificationCache.Stamp(NO_HASH, in.readLong(), in.readLong(), in.readUTF());
+        final VerificationCache.Stamp current = VerificationCache.stamp(file, NO_HASH);
+        return current != null && recorded.matches(current);
+    }
+}
@@ -0,0 +1,66 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+
+/**
+ * The original server jar, downloaded by the first setup task that needs it.
+ * <p>
+ * Setup tasks that only need files from our own jar never touch it, so they keep running while it downloads. Tasks
+ * that need the original (files missing from our jar, and patches) block in {@link #rootDir()} until the download is
+ * verified. When every patched file is already valid it is not downloaded at all, as with diskless mode, which
+ * deletes it after every setup.
+ */
+public final class OriginalJar implements AutoCloseable {
+    private final @Nullable DownloadContext context;
+    private final @Nullable Path repoDir;
+    private FileSystem fileSystem;
+
+    private OriginalJar(final @Nullable DownloadContext context, final @Nullable Path repoDir) {
+        this.context = context;
+        this.repoDir = repoDir;
+    }
+
+    /**
+     * The original jar described by {@code context}, downloaded into {@code repoDir} once a task needs it.
+     */
+    public static OriginalJar of(final DownloadContext context, final Path repoDir) {
+        return new OriginalJar(context, repoDir);
+    }
+
+    /**
+     * No original jar, we are not running in patcher mode.
+     */
+    public static OriginalJar none() {
+        return new OriginalJar(null, null);
+    }
+
+    public boolean isPresent() {
+        return this.context != null;
+    }
+
+    /**
+     * Downloads the original jar unless it already is, and returns its root, or {@code null} if there is none.
+     */
+    public synchronized @Nullable Path rootDir() throws IOException {
+        if (this.context == null) {
+            return null;
+        }
+        if (this.fileSystem == null) {
+            this.context.download(this.repoDir);
+            this.fileSystem = FileSystems.newFileSystem(this.context.getOutputFile(this.repoDir));
+        }
+        return this.fileSystem.getPath("/");
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (this.fileSystem != null) {
+            this.fileSystem.close();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Exclusive lock on one output file of the bundler repo, shared by every launcher using the same repo.
+ * <p>
+ * The lock is held on a {@code <file>.lock} sidecar, never on the output itself, so readers are not blocked. Once a
+ * holder has produced the output, it records the output's stamp in the sidecar; a launcher that waited for the lock
+ * then accepts the file without hashing it again. Sidecars are never deleted, deleting them would let two launchers
+ * lock two different files.
+ * <p>
+ * File locks are held per process, so threads of the same launcher are serialised by an in-process lock first.
+ */
+final class OutputLock implements AutoCloseable {
+    private static final Map<Path, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+    private final ReentrantLock localLock;
+    private final FileChannel channel;
+    private final FileLock lock;
+
+    private OutputLock(final ReentrantLock localLock, final FileChannel channel, final FileLock lock) {
+        this.localLock = localLock;
+        this.channel = channel;
+        this.lock = lock;
+    }
+
+    /**
+     * Blocks until no other process is producing {@code file}.
+     */
+    static OutputLock acquire(final Path file) throws IOException {
+        if (!Files.isDirectory(file.getParent())) {
+            Files.createDirectories(file.getParent());
+        }
+        final Path lockFile = file.resolveSibling(file.getFileName() + ".lock").toAbsolutePath().normalize();
+        final ReentrantLock localLock = localLocks.computeIfAbsent(lockFile, key -> new ReentrantLock());
+        localLock.lock();
+        try {
+            final FileChannel channel = FileChannel.open(lockFile, CREATE, READ, WRITE);
+            try {
+                FileLock lock = channel.tryLock();
+                if (lock == null) {
+                    Leavesclip.logger.info("Waiting for another launcher to finish {}", file.getFileName());
+                    lock = channel.lock();
+                }
+                return new OutputLock(localLock, channel, lock);
+            } catch (final IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (final IOException | RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Checks whether {@code file} was completed while waiting for the lock.
+     */
+    boolean isDone(final Path file, final byte[] hash) throws IOException {
+        if (Files.notExists(file)) {
+            return false;
+        }
+
+        final VerificationCache.Stamp recorded = this.readStamp();
+        final VerificationCache.Stamp current = VerificationCache.stamp(file, hash);
+        if (recorded != null && current != null && !VerificationCache.isParanoid() && recorded.matches(current)) {
+            VerificationCache.markVerified(file, current);
+            return true;
+        }
+        return Util.isFileValid(file, hash);
+    }
+
+    /**
+     * Records that {@code file} is complete and matches {@code hash}.
+     */
+    void markDone(final Path file, final byte[] hash) throws IOException {
+        final VerificationCache.Stamp stamp = VerificationCache.stamp(file, hash);
+        this.channel.truncate(0);
+        if (stamp != null) {
+            this.channel.write(ByteBuffer.wrap(stamp.toLine().getBytes(StandardCharsets.UTF_8)), 0);
+        }
+    }
+
+    private @Nullable VerificationCache.Stamp readStamp() throws IOException {
+        final long size = this.channel.size();
+        if (size == 0 || size > 4096) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+
+        final String line = new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
+        try {
+            return VerificationCache.Stamp.fromParts(line.split("\t"));
+        } catch (final IllegalArgumentException e) {
+            // Written by an older launcher or cut short, fall back to hashing
+            return null;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (this.channel) {
+            this.lock.release();
+        } finally {
+            this.localLock.unlock();
+        }
+    }
+}
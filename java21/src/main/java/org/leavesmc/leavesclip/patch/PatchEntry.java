@@ -9,19 +9,22 @@
 
 package org.leavesmc.leavesclip.patch;
 
-import io.sigpipe.jbsdiff.InvalidHeaderException;
-import io.sigpipe.jbsdiff.Patch;
-import org.apache.commons.compress.compressors.CompressorException;
 import org.leavesmc.leavesclip.Leavesclip;
 import org.leavesmc.leavesclip.update.AutoUpdate;
 
 import java.io.*;
 import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 import static java.nio.file.StandardOpenOption.*;
 
 public record PatchEntry(
@@ -33,7 +36,7 @@ public record PatchEntry(
     String patchPath,
     String outputPath
 ) {
-    private static boolean announced = false;
+    private static final AtomicBoolean announced = new AtomicBoolean(false);
 
     public static PatchEntry[] parse(final BufferedReader reader) throws IOException {
         var result = new PatchEntry[8];
@@ -83,66 +86,128 @@ public record PatchEntry(
         );
     }
 
-    public void applyPatch(final Map<String, Map<String, URL>> urls, final Path originalRootDir, final Path repoDir) throws IOException {
-        final Path inputDir = originalRootDir.resolve("META-INF").resolve(this.location);
+    /**
+     * Applies this patch, unless a valid patched file is already there.
+     *
+     * @return the URL of the patched file, which replaces {@link #originalPath()} on the classpath
+     */
+    public URL applyPatch(final OriginalJar originalJar, final Path repoDir) throws IOException {
         final Path targetDir = repoDir.resolve(this.location);
-
-        final Path inputFile = inputDir.resolve(this.originalPath);
         final Path outputFile = targetDir.resolve(this.outputPath);
 
         // Short-cut if the patch is already applied
         if (Files.exists(outputFile) && Util.isFileValid(outputFile, this.outputHash)) {
-            // For the classpath, use the patched file instead of the original
-            urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
-            return;
+            return outputFile.toUri().toURL();
+        }
+
+        try (final OutputLock lock = OutputLock.acquire(outputFile)) {
+            if (!lock.isDone(outputFile, this.outputHash)) {
+                // Another instance sharing the cache may have applied the same patch to the same original already
+                if (!SharedCache.fetch(this.outputHash, outputFile)) {
+                    this.patch(originalJar, outputFile);
+                    SharedCache.publish(this.outputHash, outputFile);
+                }
+                lock.markDone(outputFile, this.outputHash);
+            }
         }
 
-        if (!announced) {
+        return outputFile.toUri().toURL();
+    }
+
+    private void patch(final OriginalJar originalJar, final Path outputFile) throws IOException {
+        // Waits for the original jar if it is still downloading
+        final Path originalRootDir = originalJar.rootDir();
+        if (originalRootDir == null) {
+            throw new IllegalStateException("Patches provided without patch target");
+        }
+        final Path inputFile = originalRootDir.resolve("META-INF").resolve(this.location).resolve(this.originalPath);
+
+        if (announced.compareAndSet(false, true)) {
             Leavesclip.logger.info("Apply patches");
-            announced = true;
         }
 
-        // Verify input file is correct
+        // Verify input file exists, its hash is checked once we have a file we can map
         if (Files.notExists(inputFile)) {
             throw new IllegalStateException("Input file not found: " + inputFile);
         }
-        if (!Util.isFileValid(inputFile, this.originalHash)) {
-            throw new IllegalStateException("Hash check of input file failed for " + inputFile);
-        }
 
         // Get and verity patch data is correct
         final String fullPatchPath = "/META-INF/" + Util.endingSlash(this.location) + this.patchPath;
-        final InputStream patchStream = AutoUpdate.getResourceAsStreamFromTargetJar(fullPatchPath);
-        if (patchStream == null) {
-            throw new IllegalStateException("Patch file not found: " + fullPatchPath);
-        }
-        final byte[] patchBytes = Util.readFully(patchStream);
-        if (!Util.isDataValid(patchBytes, this.patchHash)) {
+        final BsPatch.PatchSource patchSource = () -> {
+            final InputStream patchStream = AutoUpdate.getResourceAsStreamFromTargetJar(fullPatchPath);
+            if (patchStream == null) {
+                throw new IllegalStateException("Patch file not found: " + fullPatchPath);
+            }
+            return patchStream;
+        };
+        if (!Arrays.equals(this.patchHash, Util.sha256(patchSource.open()))) {
             throw new IllegalStateException("Hash check of patch file failed for " + fullPatchPath);
         }
 
-        final byte[] originalBytes = Util.readBytes(inputFile);
+        // Never write through the output, it may be a hard link into the shared cache or be read by another launcher
+        final Path tempFile = Util.tempSibling(outputFile);
+        final Path originalFile = this.prepareOriginalFile(inputFile, outputFile);
+        final MessageDigest digest = Util.newSha256Digest();
         try {
-            if (!Files.isDirectory(outputFile.getParent())) {
-                Files.createDirectories(outputFile.getParent());
+            try {
+                try (
+                    final FileChannel originalChannel = FileChannel.open(originalFile, READ);
+                    final OutputStream outStream = new DigestOutputStream(
+                        new BufferedOutputStream(Files.newOutputStream(tempFile, WRITE, TRUNCATE_EXISTING)),
+                        digest
+                    )
+                ) {
+                    if (originalChannel.size() > Integer.MAX_VALUE) {
+                        throw new IOException("Input file is too large to be mapped: " + inputFile);
+                    }
+                    final MappedByteBuffer originalBuffer = originalChannel.map(READ_ONLY, 0, originalChannel.size());
+                    BsPatch.patch(originalBuffer, patchSource, outStream);
+                }
+            } catch (final IOException e) {
+                // Don't move this `catch` clause to the outer try-with-resources
+                // the Util.fail method never returns, so `close()` would never get called
+                throw Util.fail("Failed to patch " + inputFile, e);
+            } finally {
+                if (!originalFile.equals(inputFile)) {
+                    deleteQuietly(originalFile);
+                }
+            }
+
+            if (!Arrays.equals(this.outputHash, digest.digest())) {
+                throw new IllegalStateException("Patch not applied correctly for " + this.outputPath);
             }
-            try (
-                final OutputStream outStream =
-                    new BufferedOutputStream(Files.newOutputStream(outputFile, CREATE, WRITE, TRUNCATE_EXISTING))
-            ) {
-                Patch.patch(originalBytes, patchBytes, outStream);
+            Util.moveAtomically(tempFile, outputFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        VerificationCache.markVerified(outputFile, VerificationCache.stamp(outputFile, this.outputHash));
+    }
+
+    /**
+     * Returns a file on the default file system holding the verified original, which can be memory-mapped.
+     * The original usually lives inside the downloaded jar, then it is copied next to the output while its hash is checked.
+     */
+    private Path prepareOriginalFile(final Path inputFile, final Path outputFile) throws IOException {
+        if (inputFile.getFileSystem() == FileSystems.getDefault()) {
+            if (!Util.isFileValid(inputFile, this.originalHash)) {
+                throw new IllegalStateException("Hash check of input file failed for " + inputFile);
             }
-        } catch (final CompressorException | InvalidHeaderException | IOException e) {
-            // Don't move this `catch` clause to the outer try-with-resources
-            // the Util.fail method never returns, so `close()` would never get called
-            throw Util.fail("Failed to patch " + inputFile, e);
+            return inputFile;
         }
 
-        if (!Util.isFileValid(outputFile, this.outputHash)) {
-            throw new IllegalStateException("Patch not applied correctly for " + this.outputPath);
+        final Path copy = outputFile.resolveSibling(outputFile.getFileName() + ".original");
+        if (!Util.copyAndVerify(Files.newInputStream(inputFile), copy, this.originalHash)) {
+            throw new IllegalStateException("Hash check of input file failed for " + inputFile);
         }
+        return copy;
+    }
 
-        // For the classpath, use the patched file instead of the original
-        urls.get(this.location).put(this.originalPath, outputFile.toUri().toURL());
+    private static void deleteQuietly(final Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (final IOException e) {
+            // Windows refuses to delete a file that is still mapped, it is overwritten by the next patch run
+            Leavesclip.logger.debug("Failed to delete " + file, e);
+        }
     }
 }
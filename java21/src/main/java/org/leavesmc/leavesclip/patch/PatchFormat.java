@@ -0,0 +1,69 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Patch containers understood by {@link BsPatch}, told apart by the 8 byte magic at the start of the patch.
+ * <p>
+ * All of them share the bsdiff layout (header, then control, diff and extra sections), only the compression of the
+ * sections differs. Zstandard additionally needs {@code zstd-jni} on the classpath.
+ */
+enum PatchFormat {
+    BSDIFF40("BSDIFF40", "bzip2", CompressorStreamFactory.BZIP2),
+    LZ4("BSDIFFL4", "lz4", CompressorStreamFactory.LZ4_FRAMED),
+    ZSTD("BSDIFFZS", "zstd", CompressorStreamFactory.ZSTANDARD);
+
+    static final int MAGIC_LENGTH = 8;
+
+    private final byte[] magic;
+    private final String id;
+    private final String compressor;
+
+    PatchFormat(final String magic, final String id, final String compressor) {
+        this.magic = magic.getBytes(StandardCharsets.US_ASCII);
+        this.id = id;
+        this.compressor = compressor;
+    }
+
+    byte[] magic() {
+        return this.magic;
+    }
+
+    String id() {
+        return this.id;
+    }
+
+    /**
+     * Name of the commons-compress compressor for the sections.
+     */
+    String compressor() {
+        return this.compressor;
+    }
+
+    boolean isAvailable() {
+        return this != ZSTD || ZstdUtils.isZstdCompressionAvailable();
+    }
+
+    static @Nullable PatchFormat fromMagic(final byte[] header) {
+        for (final PatchFormat format : values()) {
+            if (header.length >= MAGIC_LENGTH && Arrays.equals(format.magic, 0, MAGIC_LENGTH, header, 0, MAGIC_LENGTH)) {
+                return format;
+            }
+        }
+        return null;
+    }
+
+    static @Nullable PatchFormat fromId(final String id) {
+        for (final PatchFormat format : values()) {
+            if (format.id.equalsIgnoreCase(id)) {
+                return format;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,54 @@
+package org.leavesmc.leavesclip.patch;
+
+import io.sigpipe.jbsdiff.DefaultDiffSettings;
+import io.sigpipe.jbsdiff.Diff;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Generates a patch in any {@link PatchFormat}, so bundles can ship patches that are faster to decompress than bzip2.
+ * <p>
+ * Usage: {@code java -cp leavesclip.jar org.leavesmc.leavesclip.patch.PatchGenerator <bzip2|lz4|zstd> <original>
+ * <modified> <patch>}. The SHA-256 of the written patch is printed for the patches.list entry.
+ */
+public final class PatchGenerator {
+    private PatchGenerator() {
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length != 4) {
+            System.err.println("Usage: PatchGenerator <bzip2|lz4|zstd> <original> <modified> <patch>");
+            System.exit(1);
+        }
+
+        final PatchFormat format = PatchFormat.fromId(args[0]);
+        if (format == null) {
+            System.err.println("Unknown patch format: " + args[0]);
+            System.exit(1);
+        }
+        if (!format.isAvailable()) {
+            System.err.println("Patch format " + format.id() + " is not available, is zstd-jni on the classpath?");
+            System.exit(1);
+        }
+
+        final byte[] original = Files.readAllBytes(Path.of(args[1]));
+        final byte[] modified = Files.readAllBytes(Path.of(args[2]));
+        final byte[] patch = generate(format, original, modified);
+
+        final Path patchFile = Path.of(args[3]);
+        Files.write(patchFile, patch);
+        System.out.println(Util.toHex(Util.newSha256Digest().digest(patch)) + "\t" + patchFile);
+    }
+
+    static byte[] generate(final PatchFormat format, final byte[] original, final byte[] modified) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Diff.diff(original, modified, out, new DefaultDiffSettings(format.compressor()));
+
+        // jbsdiff always writes the BSDIFF40 magic, the format is told apart by the magic alone
+        final byte[] patch = out.toByteArray();
+        System.arraycopy(format.magic(), 0, patch, 0, PatchFormat.MAGIC_LENGTH);
+        return patch;
+    }
+}
@@ -0,0 +1,110 @@
+package org.leavesmc.leavesclip.patch;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads (and therefore decompresses) a stream on its own thread, ahead of the consumer.
+ * <p>
+ * At most {@code chunks} chunks of {@code chunkSize} bytes are buffered, so memory stays bounded however fast the
+ * producer is compared to the consumer.
+ */
+final class PrefetchInputStream extends InputStream {
+    private static final Chunk END = new Chunk(new byte[0], 0, null);
+
+    private final BlockingQueue<Chunk> queue;
+    private final Thread thread;
+    private volatile boolean closed = false;
+    private Chunk current;
+    private int position;
+
+    PrefetchInputStream(final InputStream source, final String name, final int chunkSize, final int chunks) {
+        this.queue = new ArrayBlockingQueue<>(chunks);
+        this.thread = new Thread(() -> this.prefetch(source, chunkSize), name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void prefetch(final InputStream source, final int chunkSize) {
+        try (source) {
+            while (!this.closed) {
+                final byte[] buffer = new byte[chunkSize];
+                final int read = source.readNBytes(buffer, 0, chunkSize);
+                if (read > 0) {
+                    this.queue.put(new Chunk(buffer, read, null));
+                }
+                if (read < chunkSize) {
+                    break;
+                }
+            }
+            this.queue.put(END);
+        } catch (final InterruptedException e) {
+            // Closed by the consumer
+        } catch (final Throwable t) {
+            try {
+                this.queue.put(new Chunk(null, 0, t));
+            } catch (final InterruptedException ignored) {
+                // Closed by the consumer
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (this.current != null && this.position < this.current.length()) {
+            return true;
+        }
+        if (this.current == END) {
+            return false;
+        }
+
+        final Chunk next;
+        try {
+            next = this.queue.take();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading " + this.thread.getName(), e);
+        }
+        if (next.error() != null) {
+            throw new IOException("Failed to read " + this.thread.getName(), next.error());
+        }
+
+        this.current = next;
+        this.position = 0;
+        return next != END;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!this.fill()) {
+            return -1;
+        }
+        return this.current.data()[this.position++] & 0xFF;
+    }
+
+    @Override
+    public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!this.fill()) {
+            return -1;
+        }
+
+        final int count = Math.min(length, this.current.length() - this.position);
+        System.arraycopy(this.current.data(), this.position, buffer, offset, count);
+        this.position += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        this.thread.interrupt();
+        this.queue.clear();
+    }
+
+    private record Chunk(byte[] data, int length, Throwable error) {
+    }
+}
@@ -0,0 +1,94 @@
+package org.leavesmc.leavesclip.patch;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded worker pool used to extract, patch and verify independent entries concurrently.
+ * <p>
+ * The pool size is read from {@code -Dleavesclip.setup-threads} and defaults to the number of available
+ * processors. With a size of {@code 1} every task runs on the calling thread, as the launcher used to.
+ */
+public final class SetupExecutor implements AutoCloseable {
+    public static final int parallelism = Math.max(
+        1, Integer.getInteger("leavesclip.setup-threads", Runtime.getRuntime().availableProcessors())
+    );
+
+    private final ExecutorService executor;
+
+    public SetupExecutor() {
+        if (parallelism > 1) {
+            final AtomicInteger counter = new AtomicInteger();
+            this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+                final Thread thread = new Thread(runnable, "Leavesclip Setup Worker #" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        } else {
+            this.executor = null;
+        }
+    }
+
+    /**
+     * Runs all tasks and waits for them to finish.
+     *
+     * @return the results, in the same order as the tasks
+     */
+    public <T> List<T> invokeAll(final List<Callable<T>> tasks) throws IOException {
+        final List<T> results = new ArrayList<>(tasks.size());
+        if (this.executor == null || tasks.size() <= 1) {
+            for (final Callable<T> task : tasks) {
+                results.add(call(task));
+            }
+            return results;
+        }
+
+        final List<Future<T>> futures = new ArrayList<>(tasks.size());
+        for (final Callable<T> task : tasks) {
+            futures.add(this.executor.submit(task));
+        }
+        try {
+            for (final Future<T> future : futures) {
+                results.add(join(future));
+            }
+        } finally {
+            futures.forEach(future -> future.cancel(true));
+        }
+        return results;
+    }
+
+    private static <T> T call(final Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (final IOException | RuntimeException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw Util.sneakyThrow(e);
+        }
+    }
+
+    private static <T> T join(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for setup tasks", e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw Util.sneakyThrow(cause);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (this.executor != null) {
+            this.executor.shutdownNow();
+        }
+    }
+}
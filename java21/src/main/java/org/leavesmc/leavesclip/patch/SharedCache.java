@@ -0,0 +1,109 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * Content-addressed store shared by several server instances, enabled with {@code -Dleavesclip.shared-cache=<dir>}.
+ * <p>
+ * Files are stored as {@code <dir>/<first two hex chars>/<sha256>}, so the downloaded original jar, extracted files
+ * and patched outputs are only produced once per host. They are hard-linked into each instance's repo where the file
+ * system allows it and copied otherwise. Every file taken from the cache is verified against its hash.
+ */
+final class SharedCache {
+    private static final Path directory = getDirectory();
+
+    private SharedCache() {
+    }
+
+    private static @Nullable Path getDirectory() {
+        final String dir = System.getProperty("leavesclip.shared-cache");
+        if (dir == null || dir.isBlank()) {
+            return null;
+        }
+        return Path.of(dir).toAbsolutePath();
+    }
+
+    private static Path resolve(final byte[] hash) {
+        final String hex = Util.toHex(hash);
+        return directory.resolve(hex.substring(0, 2)).resolve(hex);
+    }
+
+    /**
+     * Places the cached file with the given hash at {@code target}, atomically replacing whatever is there.
+     *
+     * @return whether the file was found in the cache
+     */
+    static boolean fetch(final byte[] hash, final Path target) throws IOException {
+        if (directory == null) {
+            return false;
+        }
+        final Path cached = resolve(hash);
+        if (Files.notExists(cached) || !Util.isFileValid(cached, hash)) {
+            return false;
+        }
+
+        if (!Files.isDirectory(target.getParent())) {
+            Files.createDirectories(target.getParent());
+        }
+        final Path tempFile = Util.tempSibling(target);
+        try {
+            Files.delete(tempFile);
+            Files.createLink(tempFile, cached);
+            Util.moveAtomically(tempFile, target);
+            VerificationCache.markVerified(target, VerificationCache.stamp(target, hash));
+            return true;
+        } catch (final IOException | UnsupportedOperationException e) {
+            // Different file system or no hard link support, fall back to a verified copy
+            return Util.copyAndVerify(Files.newInputStream(cached), target, hash);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    /**
+     * Adds a verified file to the cache, unless another instance already did. The entry appears atomically.
+     */
+    static void publish(final byte[] hash, final Path file) {
+        if (directory == null) {
+            return;
+        }
+        final Path cached = resolve(hash);
+        if (Files.exists(cached)) {
+            return;
+        }
+
+        Path tempFile = null;
+        try {
+            Files.createDirectories(cached.getParent());
+            // Unique name per writer, the link needs a path that does not exist yet
+            tempFile = Files.createTempFile(cached.getParent(), cached.getFileName().toString(), ".tmp");
+            Files.delete(tempFile);
+            try {
+                Files.createLink(tempFile, file);
+            } catch (final IOException | UnsupportedOperationException e) {
+                Files.copy(file, tempFile, REPLACE_EXISTING);
+            }
+            Files.move(tempFile, cached, ATOMIC_MOVE);
+        } catch (final IOException e) {
+            if (Files.notExists(cached)) {
+                Leavesclip.logger.warn("Failed to add " + file + " to the shared cache", e);
+            }
+        } finally {
+            if (tempFile != null) {
+                try {
+                    Files.deleteIfExists(tempFile);
+                } catch (final IOException ignored) {
+                    // Left over temp files are never used, they only cost disk space
+                }
+            }
+        }
+    }
+}
@@ -4,19 +4,35 @@ import org.leavesmc.leavesclip.Leavesclip;
 import org.leavesmc.leavesclip.update.AutoUpdate;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.DigestInputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HexFormat;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
 
 public class Util {
-    public static final MessageDigest sha256Digest = getSha256Digest();
+    private static final int HASH_BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> hashBuffer =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(HASH_BUFFER_SIZE));
 
     private Util() {
     }
 
-    private static MessageDigest getSha256Digest() {
+    /**
+     * {@link MessageDigest} instances are not thread-safe, every caller gets its own.
+     */
+    public static MessageDigest newSha256Digest() {
         try {
             return MessageDigest.getInstance("SHA-256");
         } catch (final NoSuchAlgorithmException e) {
@@ -24,31 +40,6 @@ public class Util {
         }
     }
 
-    static byte[] readBytes(final Path file) {
-        try {
-            return readFully(Files.newInputStream(file));
-        } catch (final IOException e) {
-            throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
-        }
-    }
-
-    static byte[] readFully(final InputStream in) throws IOException {
-        try (in) {
-            // In a test this was 12 ms quicker than a ByteBuffer
-            // and for some reason that matters here.
-            byte[] buffer = new byte[16 * 1024];
-            int off = 0;
-            int read;
-            while ((read = in.read(buffer, off, buffer.length - off)) != -1) {
-                off += read;
-                if (off == buffer.length) {
-                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
-                }
-            }
-            return Arrays.copyOfRange(buffer, 0, off);
-        }
-    }
-
     public static String readResourceText(final String path) throws IOException {
         final String p;
         if (path.startsWith("/")) {
@@ -70,18 +61,142 @@ public class Util {
         return writer.toString();
     }
 
-    static boolean isDataValid(final byte[] data, final byte[] hash) {
-        return Arrays.equals(hash, sha256Digest.digest(data));
+    /**
+     * Hashes and closes a stream, without keeping more than a small buffer in memory.
+     */
+    public static byte[] sha256(final InputStream in) throws IOException {
+        final MessageDigest digest = newSha256Digest();
+        try (final InputStream stream = new DigestInputStream(in, digest)) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Hashes a file with a small fixed-size buffer, regardless of the file size.
+     */
+    public static byte[] sha256(final Path file) throws IOException {
+        final MessageDigest digest = newSha256Digest();
+        final ByteBuffer buffer = hashBuffer.get();
+        try (final ReadableByteChannel channel = Files.newByteChannel(file)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return digest.digest();
     }
 
     static boolean isFileValid(final Path file, final byte[] hash) {
         if (Files.exists(file)) {
-            final byte[] fileBytes = readBytes(file);
-            return isDataValid(fileBytes, hash);
+            // Take the stamp before reading, so a concurrent modification can never be recorded as verified
+            final VerificationCache.Stamp stamp = VerificationCache.stamp(file, hash);
+            if (VerificationCache.isVerified(file, stamp)) {
+                return true;
+            }
+
+            final byte[] fileHash;
+            try {
+                fileHash = sha256(file);
+            } catch (final IOException e) {
+                throw fail("Failed to read all of the data from " + file.toAbsolutePath(), e);
+            }
+            if (Arrays.equals(hash, fileHash)) {
+                VerificationCache.markVerified(file, stamp);
+                return true;
+            }
         }
         return false;
     }
 
+    /**
+     * Copies a stream into a file while hashing the copied bytes, so the file does not need to be read again to be
+     * verified. The bytes are written to a temporary file which is only moved into place once its hash matches, so
+     * other processes never see a partially written or corrupt file.
+     *
+     * @return whether the copied data matches the given hash
+     */
+    static boolean copyAndVerify(final InputStream in, final Path outputFile, final byte[] hash) throws IOException {
+        final MessageDigest digest = newSha256Digest();
+        final Path tempFile = tempSibling(outputFile);
+        try {
+            try (
+                final InputStream stream = new DigestInputStream(in, digest);
+                final ReadableByteChannel inputChannel = Channels.newChannel(stream);
+                final FileChannel outputChannel = FileChannel.open(tempFile, WRITE, TRUNCATE_EXISTING)
+            ) {
+                outputChannel.transferFrom(inputChannel, 0, Long.MAX_VALUE);
+            }
+
+            if (!Arrays.equals(hash, digest.digest())) {
+                return false;
+            }
+            moveAtomically(tempFile, outputFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        VerificationCache.markVerified(outputFile, VerificationCache.stamp(outputFile, hash));
+        return true;
+    }
+
+    /**
+     * Copies a range of a file into another file, verifying the copied bytes like
+     * {@link #copyAndVerify(InputStream, Path, byte[])}. The bytes are hashed from a mapping of the source and copied
+     * with {@link FileChannel#transferTo}, which lets the kernel copy them (sendfile / copy_file_range) without moving
+     * them through the heap.
+     *
+     * @return whether the copied data matches the given hash
+     */
+    static boolean copyAndVerify(final Path source, final long offset, final long length, final Path outputFile, final byte[] hash) throws IOException {
+        final Path tempFile = tempSibling(outputFile);
+        try {
+            try (
+                final FileChannel inputChannel = FileChannel.open(source);
+                final FileChannel outputChannel = FileChannel.open(tempFile, WRITE, TRUNCATE_EXISTING)
+            ) {
+                final MessageDigest digest = newSha256Digest();
+                digest.update(inputChannel.map(FileChannel.MapMode.READ_ONLY, offset, length));
+                if (!Arrays.equals(hash, digest.digest())) {
+                    return false;
+                }
+
+                long position = 0;
+                while (position < length) {
+                    final long transferred = inputChannel.transferTo(offset + position, length - position, outputChannel);
+                    if (transferred <= 0) {
+                        throw new IOException("Unexpected end of " + source);
+                    }
+                    position += transferred;
+                }
+            }
+            moveAtomically(tempFile, outputFile);
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+        VerificationCache.markVerified(outputFile, VerificationCache.stamp(outputFile, hash));
+        return true;
+    }
+
+    /**
+     * Creates a new, uniquely named file next to {@code file}, to be written and then moved over it.
+     */
+    public static Path tempSibling(final Path file) throws IOException {
+        return Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    }
+
+    /**
+     * Replaces {@code target} with {@code source} in one step where the file system supports it.
+     */
+    public static void moveAtomically(final Path source, final Path target) throws IOException {
+        try {
+            Files.move(source, target, ATOMIC_MOVE, REPLACE_EXISTING);
+        } catch (final AtomicMoveNotSupportedException e) {
+            Files.move(source, target, REPLACE_EXISTING);
+        }
+    }
+
     static byte[] fromHex(final String s) {
         if (s.length() % 2 != 0) {
             throw new IllegalArgumentException("Length of hex " + s + " must be divisible by two");
@@ -100,6 +215,10 @@ public class Util {
         }
     }
 
+    static String toHex(final byte[] bytes) {
+        return HexFormat.of().formatHex(bytes);
+    }
+
     private static int getHexValue(final char c) {
         final int i = Character.digit(c, 16);
         if (i < 0) {
@@ -0,0 +1,180 @@
+package org.leavesmc.leavesclip.patch;
+
+import org.jetbrains.annotations.Nullable;
+import org.leavesmc.leavesclip.Leavesclip;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * On-disk index of files that already passed the hash check.
+ * <p>
+ * A file is accepted without being re-hashed only if its size, modification time, file key and the
+ * expected hash all match the stamp recorded the last time it was verified. Any difference falls back
+ * to a full hash. Entries read in place from a jar are stamped with the attributes of that jar. Set
+ * {@code -Dleavesclip.paranoid-verify=true} to always hash.
+ */
+public final class VerificationCache {
+    private static final String FILE_NAME = "verification.stamps";
+    private static final String ENTRY_SEPARATOR = "!/";
+    private static final boolean paranoid = Boolean.getBoolean("leavesclip.paranoid-verify");
+    private static final Map<String, Stamp> stamps = new ConcurrentHashMap<>();
+    private static volatile Path cacheFile;
+    private static volatile boolean dirty = false;
+
+    private VerificationCache() {
+    }
+
+    public static void load(final Path repoDir) {
+        cacheFile = repoDir.resolve("cache").resolve(FILE_NAME);
+        stamps.clear();
+        dirty = false;
+        if (paranoid || Files.notExists(cacheFile)) {
+            return;
+        }
+
+        try (final BufferedReader reader = Files.newBufferedReader(cacheFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.split("\t", 5);
+                if (parts.length != 5) {
+                    throw new IllegalArgumentException("Malformed stamp line: " + line);
+                }
+                stamps.put(parts[4], Stamp.fromParts(parts));
+            }
+        } catch (final IOException | IllegalArgumentException e) {
+            Leavesclip.logger.warn("Failed to read verification stamps, all files will be hashed again", e);
+            stamps.clear();
+        }
+    }
+
+    public static void save() {
+        final Path file = cacheFile;
+        if (file == null || paranoid || !dirty) {
+            return;
+        }
+
+        try {
+            Files.createDirectories(file.getParent());
+            // Several launchers may share the repo, each one writes its own temp file
+            final Path tempFile = Util.tempSibling(file);
+            try (final BufferedWriter writer = Files.newBufferedWriter(tempFile)) {
+                for (final Map.Entry<String, Stamp> entry : stamps.entrySet()) {
+                    if (Files.notExists(Path.of(fileOf(entry.getKey())))) {
+                        continue;
+                    }
+                    writer.write(entry.getValue().toLine() + "\t" + entry.getKey());
+                    writer.newLine();
+                }
+            }
+            Util.moveAtomically(tempFile, file);
+            dirty = false;
+        } catch (final IOException e) {
+            Leavesclip.logger.warn("Failed to write verification stamps", e);
+        }
+    }
+
+    /**
+     * Reads the current stamp of a file, to be taken before the file is hashed.
+     *
+     * @return the stamp, or {@code null} if the file can not be stamped (not on the default file system)
+     */
+    static @Nullable Stamp stamp(final Path file, final byte[] hash) {
+        if (cacheFile == null || file.getFileSystem() != FileSystems.getDefault()) {
+            return null;
+        }
+        try {
+            final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            final Object fileKey = attributes.fileKey();
+            return new Stamp(
+                hash,
+                attributes.size(),
+                attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                fileKey == null ? "-" : fileKey.toString().replace('\t', ' ')
+            );
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    static boolean isParanoid() {
+        return paranoid;
+    }
+
+    static boolean isVerified(final Path file, final @Nullable Stamp stamp) {
+        if (paranoid || stamp == null) {
+            return false;
+        }
+        final Stamp recorded = stamps.get(key(file));
+        return recorded != null && recorded.matches(stamp);
+    }
+
+    static void markVerified(final Path file, final @Nullable Stamp stamp) {
+        if (paranoid || stamp == null) {
+            return;
+        }
+        final Stamp previous = stamps.put(key(file), stamp);
+        if (previous == null || !previous.matches(stamp)) {
+            dirty = true;
+        }
+    }
+
+    /**
+     * Like {@link #isVerified}, for an entry of a jar and the stamp of that jar.
+     */
+    static boolean isVerified(final Path jar, final String entryName, final @Nullable Stamp jarStamp) {
+        if (paranoid || jarStamp == null) {
+            return false;
+        }
+        final Stamp recorded = stamps.get(key(jar) + ENTRY_SEPARATOR + entryName);
+        return recorded != null && recorded.matches(jarStamp);
+    }
+
+    static void markVerified(final Path jar, final String entryName, final @Nullable Stamp jarStamp) {
+        if (paranoid || jarStamp == null) {
+            return;
+        }
+        final Stamp previous = stamps.put(key(jar) + ENTRY_SEPARATOR + entryName, jarStamp);
+        if (previous == null || !previous.matches(jarStamp)) {
+            dirty = true;
+        }
+    }
+
+    private static String key(final Path file) {
+        return file.toAbsolutePath().normalize().toString();
+    }
+
+    private static String fileOf(final String key) {
+        final int separator = key.indexOf(ENTRY_SEPARATOR);
+        return separator < 0 ? key : key.substring(0, separator);
+    }
+
+    record Stamp(byte[] hash, long size, long modifiedTime, String fileKey) {
+        static Stamp fromParts(final String[] parts) {
+            if (parts.length < 4) {
+                throw new IllegalArgumentException("Malformed stamp: " + String.join("\t", parts));
+            }
+            return new Stamp(Util.fromHex(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts[3]);
+        }
+
+        String toLine() {
+            return Util.toHex(this.hash) + "\t" + this.size + "\t" + this.modifiedTime + "\t" + this.fileKey;
+        }
+
+        boolean matches(final Stamp other) {
+            return this.size == other.size
+                && this.modifiedTime == other.modifiedTime
+                && this.fileKey.equals(other.fileKey)
+                && Arrays.equals(this.hash, other.hash);
+        }
+    }
+}
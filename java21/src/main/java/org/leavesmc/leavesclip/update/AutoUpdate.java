@@ -5,8 +5,6 @@ import org.leavesmc.leavesclip.logger.SimpleLogger;
 
 import java.io.*;
 import java.util.Arrays;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class AutoUpdate {
     public static final Logger logger = new SimpleLogger("AutoUpdate");
@@ -85,25 +83,11 @@ public class AutoUpdate {
             return AutoUpdate.class.getResourceAsStream(name);
         }
 
-        String jarPath = autoUpdateCorePath;
-        name = name.replaceFirst("/", "");
         InputStream result = null;
-
         try {
-            ZipInputStream zipInputStream = new ZipInputStream(new FileInputStream(jarPath));
-            ZipEntry zipEntry;
-
-            while ((zipEntry = zipInputStream.getNextEntry()) != null) {
-                if (zipEntry.getName().equals(name)) {
-                    result = new ByteArrayInputStream(zipInputStream.readAllBytes());
-                    break;
-                }
-                zipInputStream.closeEntry();
-            }
-            zipInputStream.close();
-
+            result = TargetJar.getResourceAsStream(name);
             if (result == null) {
-                throw new IOException(name + " not found in our jar or in the " + jarPath);
+                throw new IOException(name + " not found in our jar or in the " + autoUpdateCorePath);
             }
         } catch (IOException e) {
             logger.error("Failed to get resource as stream.\n", e);
@@ -0,0 +1,53 @@
+package org.leavesmc.leavesclip.update;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Random-access view of the auto-update core jar.
+ * <p>
+ * The central directory is read once when the jar is first opened, after that every lookup is a
+ * hash lookup by entry name instead of a scan over the whole archive. The underlying {@link ZipFile}
+ * is thread-safe and stays open for the lifetime of the launcher.
+ */
+public final class TargetJar {
+    private static final Object lock = new Object();
+    private static volatile ZipFile zipFile;
+
+    private TargetJar() {
+    }
+
+    private static ZipFile open() throws IOException {
+        ZipFile file = zipFile;
+        if (file != null) {
+            return file;
+        }
+        synchronized (lock) {
+            if (zipFile == null) {
+                zipFile = new ZipFile(AutoUpdate.autoUpdateCorePath);
+            }
+            return zipFile;
+        }
+    }
+
+    private static String normalize(String name) {
+        return name.startsWith("/") ? name.substring(1) : name;
+    }
+
+    public static @Nullable ZipEntry getEntry(String name) throws IOException {
+        return open().getEntry(normalize(name));
+    }
+
+    public static @Nullable InputStream getResourceAsStream(String name) throws IOException {
+        ZipFile file = open();
+        ZipEntry entry = file.getEntry(normalize(name));
+        if (entry == null) {
+            return null;
+        }
+        return file.getInputStream(entry);
+    }
+}